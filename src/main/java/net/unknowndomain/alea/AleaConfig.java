@@ -18,6 +18,10 @@ package net.unknowndomain.alea;
 import com.fasterxml.uuid.EthernetAddress;
 import com.fasterxml.uuid.Generators;
 import java.util.UUID;
+import net.unknowndomain.alea.settings.SettingsBackend;
+import net.unknowndomain.alea.settings.SettingsFormat;
+import net.unknowndomain.alea.settings.SettingsRepository;
+import net.unknowndomain.alea.utils.CommandExecutor;
 
 /**
  *
@@ -31,6 +35,15 @@ public class AleaConfig
     private final UUID namespace;
     private final boolean enableInteractions;
     private final String commandPrefix;
+    private SettingsBackend settingsBackend = SettingsBackend.FILES;
+    private SettingsFormat settingsFormat = SettingsFormat.JSON;
+    private long settingsFlushInterval = SettingsRepository.DEFAULT_FLUSH_INTERVAL;
+    private long settingsCacheSize = 0L;
+    private long settingsCacheIdle = SettingsRepository.DEFAULT_CACHE_IDLE;
+    private boolean compositeIcons = false;
+    private int commandThreads = CommandExecutor.DEFAULT_THREADS;
+    private int commandQueue = CommandExecutor.DEFAULT_QUEUE;
+    private boolean virtualThreads = false;
     
     public AleaConfig(String discordToken, boolean systemListener, String settingsDir, boolean enableInteractions, String commandPrefix)
     {
@@ -83,4 +96,94 @@ public class AleaConfig
     {
         return enableInteractions;
     }
+
+    public SettingsBackend getSettingsBackend()
+    {
+        return settingsBackend;
+    }
+
+    public void setSettingsBackend(SettingsBackend settingsBackend)
+    {
+        this.settingsBackend = settingsBackend;
+    }
+
+    public SettingsFormat getSettingsFormat()
+    {
+        return settingsFormat;
+    }
+
+    public void setSettingsFormat(SettingsFormat settingsFormat)
+    {
+        this.settingsFormat = settingsFormat;
+    }
+
+    public long getSettingsFlushInterval()
+    {
+        return settingsFlushInterval;
+    }
+
+    public void setSettingsFlushInterval(long settingsFlushInterval)
+    {
+        this.settingsFlushInterval = settingsFlushInterval;
+    }
+
+    public long getSettingsCacheSize()
+    {
+        return settingsCacheSize;
+    }
+
+    public void setSettingsCacheSize(long settingsCacheSize)
+    {
+        this.settingsCacheSize = settingsCacheSize;
+    }
+
+    public long getSettingsCacheIdle()
+    {
+        return settingsCacheIdle;
+    }
+
+    public void setSettingsCacheIdle(long settingsCacheIdle)
+    {
+        this.settingsCacheIdle = settingsCacheIdle;
+    }
+
+    public boolean isCompositeIcons()
+    {
+        return compositeIcons;
+    }
+
+    public void setCompositeIcons(boolean compositeIcons)
+    {
+        this.compositeIcons = compositeIcons;
+    }
+
+    public int getCommandThreads()
+    {
+        return commandThreads;
+    }
+
+    public void setCommandThreads(int commandThreads)
+    {
+        this.commandThreads = commandThreads;
+    }
+
+    public int getCommandQueue()
+    {
+        return commandQueue;
+    }
+
+    public void setCommandQueue(int commandQueue)
+    {
+        this.commandQueue = commandQueue;
+    }
+
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+    }
 }
@@ -15,9 +15,15 @@
  */
 package net.unknowndomain.alea;
 
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.StringJoiner;
+import net.unknowndomain.alea.settings.SettingsBackend;
+import net.unknowndomain.alea.settings.SettingsFormat;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
@@ -74,13 +80,167 @@ public class AleaConfigParser
                         .desc("Defines a prefix for the SlashCommands interactions")
                         .build()
         );
+        CMD_OPTIONS.addOption(
+                Option.builder("f")
+                        .longOpt("settingsFlushInterval")
+                        .hasArg()
+                        .argName("millis")
+                        .desc("Defines the interval between writes of the changed guild settings, 0 to write them immediately")
+                        .build()
+        );
+        CMD_OPTIONS.addOption(
+                Option.builder("b")
+                        .longOpt("settingsBackend")
+                        .hasArg()
+                        .argName("files|journal|mvstore")
+                        .desc("Defines how the guild settings are stored: one file per guild (default), an append-only journal or an embedded MVStore database")
+                        .build()
+        );
+        CMD_OPTIONS.addOption(
+                Option.builder()
+                        .longOpt("settingsFormat")
+                        .hasArg()
+                        .argName("json|binary")
+                        .desc("Defines the encoding of the guild settings files, existing JSON files are converted to binary on startup")
+                        .build()
+        );
+        CMD_OPTIONS.addOption(
+                Option.builder("c")
+                        .longOpt("settingsCacheSize")
+                        .hasArg()
+                        .argName("guilds")
+                        .desc("Loads the guild settings on demand, keeping at most the given number in memory; 0 loads them all at startup")
+                        .build()
+        );
+        CMD_OPTIONS.addOption(
+                Option.builder()
+                        .longOpt("settingsCacheIdle")
+                        .hasArg()
+                        .argName("minutes")
+                        .desc("Defines after how many minutes an unused guild is evicted from the settings cache")
+                        .build()
+        );
+        CMD_OPTIONS.addOption(
+                Option.builder()
+                        .longOpt("compositeIcons")
+                        .desc("Renders the icons with no custom emoji of a reply as a single image")
+                        .build()
+        );
+        CMD_OPTIONS.addOption(
+                Option.builder()
+                        .longOpt("commandThreads")
+                        .hasArg()
+                        .argName("threads")
+                        .desc("Defines how many threads run the commands")
+                        .build()
+        );
+        CMD_OPTIONS.addOption(
+                Option.builder()
+                        .longOpt("commandQueue")
+                        .hasArg()
+                        .argName("commands")
+                        .desc("Defines how many commands can wait for a free thread before new ones are rejected")
+                        .build()
+        );
+        CMD_OPTIONS.addOption(
+                Option.builder()
+                        .longOpt("virtualThreads")
+                        .desc("Runs the commands, the settings persistence and the login completions on virtual threads, requires Java 21 or later")
+                        .build()
+        );
     }
     
     public static AleaConfig parseConfig(String ... args) throws ParseException
     {
         CommandLine cmd = PARSER.parse(CMD_OPTIONS, args);
         AleaConfig retVal = new AleaConfig(cmd.getOptionValue("discordToken"), cmd.hasOption("systemListener"), cmd.getOptionValue("settingsRepository"), cmd.hasOption("enableInteractions"), cmd.getOptionValue("commandPrefix", ""));
+        if (cmd.hasOption("settingsFlushInterval"))
+        {
+            retVal.setSettingsFlushInterval(parseLong(cmd, "settingsFlushInterval", 0L));
+        }
+        if (cmd.hasOption("settingsBackend"))
+        {
+            retVal.setSettingsBackend(parseEnum(cmd, "settingsBackend", SettingsBackend.class));
+        }
+        if (cmd.hasOption("settingsFormat"))
+        {
+            retVal.setSettingsFormat(parseEnum(cmd, "settingsFormat", SettingsFormat.class));
+        }
+        if (cmd.hasOption("settingsCacheSize"))
+        {
+            retVal.setSettingsCacheSize(parseLong(cmd, "settingsCacheSize", 0L));
+        }
+        if (cmd.hasOption("settingsCacheIdle"))
+        {
+            retVal.setSettingsCacheIdle(parseLong(cmd, "settingsCacheIdle", 1L));
+        }
+        retVal.setCompositeIcons(cmd.hasOption("compositeIcons"));
+        retVal.setVirtualThreads(cmd.hasOption("virtualThreads"));
+        if (cmd.hasOption("commandThreads"))
+        {
+            retVal.setCommandThreads((int) parseLong(cmd, "commandThreads", 1L, Integer.MAX_VALUE));
+        }
+        if (cmd.hasOption("commandQueue"))
+        {
+            retVal.setCommandQueue((int) parseLong(cmd, "commandQueue", 1L, Integer.MAX_VALUE));
+        }
         return retVal;
     }
     
+    /**
+     * Prints the command line usage, after the error that prevented the
+     * start.
+     *
+     * @param error the error message
+     */
+    public static void printUsage(String error)
+    {
+        System.err.println(error);
+        HelpFormatter formatter = new HelpFormatter();
+        PrintWriter writer = new PrintWriter(System.err);
+        formatter.printHelp(writer, 80, "alea-iacta-discord", null, CMD_OPTIONS, 1, 3, null, true);
+        writer.flush();
+    }
+    
+    private static long parseLong(CommandLine cmd, String option, long min) throws ParseException
+    {
+        return parseLong(cmd, option, min, Long.MAX_VALUE);
+    }
+    
+    private static long parseLong(CommandLine cmd, String option, long min, long max) throws ParseException
+    {
+        String value = cmd.getOptionValue(option);
+        try
+        {
+            long retVal = Long.parseLong(value.trim());
+            if ((retVal >= min) && (retVal <= max))
+            {
+                return retVal;
+            }
+        }
+        catch (NumberFormatException ex)
+        {
+            LOGGER.trace(null, ex);
+        }
+        throw new ParseException("Invalid value for --" + option + ": " + value + ", expected a whole number from " + min + ((max < Long.MAX_VALUE) ? " to " + max : " up"));
+    }
+    
+    private static <E extends Enum<E>> E parseEnum(CommandLine cmd, String option, Class<E> type) throws ParseException
+    {
+        String value = cmd.getOptionValue(option);
+        try
+        {
+            return Enum.valueOf(type, value.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException ex)
+        {
+            StringJoiner allowed = new StringJoiner("|");
+            for (E constant : type.getEnumConstants())
+            {
+                allowed.add(constant.name().toLowerCase(Locale.ROOT));
+            }
+            throw new ParseException("Invalid value for --" + option + ": " + value + ", expected one of " + allowed);
+        }
+    }
+    
 }
@@ -15,18 +15,26 @@
  */
 package net.unknowndomain.alea;
 
-import net.unknowndomain.alea.bot.SystemListener;
+import net.unknowndomain.alea.bot.CommandRegistry;
+import net.unknowndomain.alea.bot.SystemDispatcher;
 import net.unknowndomain.alea.bot.AleaMsgListener;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import net.unknowndomain.alea.server.AleaJoinListener;
 import net.unknowndomain.alea.slash.AleaSlashCommands;
 import net.unknowndomain.alea.settings.SettingsRepository;
 import net.unknowndomain.alea.slash.CommandsHelper;
 import net.unknowndomain.alea.systems.RpgSystemCommand;
+import net.unknowndomain.alea.systems.RpgSystemDescriptor;
+import net.unknowndomain.alea.utils.CommandExecutor;
 import net.unknowndomain.alea.utils.EmojiIconSolver;
+import net.unknowndomain.alea.utils.IconAttachmentCache;
+import net.unknowndomain.alea.utils.VirtualThreads;
 import org.apache.commons.daemon.Daemon;
 import org.apache.commons.daemon.DaemonContext;
 import org.apache.commons.daemon.DaemonInitException;
@@ -46,6 +54,10 @@ public class AleaDaemon implements Daemon
     
     private AleaConfig aleaConfig;
     private List<DiscordApi> shards;
+    private final AtomicBoolean firstShard = new AtomicBoolean();
+    private SettingsRepository settingsRepository;
+    private CommandExecutor commandExecutor;
+    private ExecutorService shardCompletions;
     
     public AleaDaemon()
     {
@@ -68,51 +80,59 @@ public class AleaDaemon implements Daemon
     @Override
     public void start() throws Exception
     {
-        SettingsRepository settingsRepository = new SettingsRepository(aleaConfig.getSettingsDir());
+        boolean virtualThreads = VirtualThreads.setEnabled(aleaConfig.isVirtualThreads());
+        CommandRegistry registry = CommandRegistry.build();
+        settingsRepository = new SettingsRepository(aleaConfig.getSettingsDir(), aleaConfig.getSettingsBackend(), aleaConfig.getSettingsFormat(), aleaConfig.getSettingsFlushInterval(), aleaConfig.getSettingsCacheSize(), aleaConfig.getSettingsCacheIdle());
+        IconAttachmentCache.getInstance().setCompositeIcons(aleaConfig.isCompositeIcons());
+        if (virtualThreads)
+        {
+            commandExecutor = CommandExecutor.virtual(aleaConfig.getCommandThreads(), aleaConfig.getCommandQueue());
+        }
+        else
+        {
+            commandExecutor = CommandExecutor.fixed(aleaConfig.getCommandThreads(), aleaConfig.getCommandQueue());
+        }
         DiscordApiBuilder apiBuilder = new DiscordApiBuilder();
         apiBuilder.setToken(aleaConfig.getDiscordToken());
-        apiBuilder.addListener(new AleaMsgListener(settingsRepository, aleaConfig.getNamespace()));
-        for (Long guildId : settingsRepository.listGuilds())
+        apiBuilder.addListener(new AleaMsgListener(registry, settingsRepository, commandExecutor, aleaConfig.getNamespace()));
+        List<RpgSystemDescriptor> descriptors = new ArrayList<>();
+        for (RpgSystemCommand system : registry.getSystems())
         {
-            for (RpgSystemCommand system : RpgSystemCommand.LOADER)
-            {
-                settingsRepository.initSystem(guildId, system.getCommandDesc());
-            }
+            descriptors.add(system.getCommandDesc());
         }
+        int updated = settingsRepository.initSystems(descriptors);
+        LOGGER.info("Initialized missing systems for {} guilds", updated);
         if (aleaConfig.isSystemListener())
         {
-            for (RpgSystemCommand system : RpgSystemCommand.LOADER)
-            {
-                apiBuilder.addListener(new SystemListener(system, settingsRepository, aleaConfig.getNamespace()));
-            }
+            apiBuilder.addListener(new SystemDispatcher(registry, settingsRepository, commandExecutor, aleaConfig.getNamespace()));
         }
         if (aleaConfig.isEnableInteractions())
         {
-            apiBuilder.addListener(new AleaSlashCommands(settingsRepository, aleaConfig.getCommandPrefix(), aleaConfig.getNamespace()));
+            apiBuilder.addListener(new AleaSlashCommands(registry, settingsRepository, commandExecutor, aleaConfig.getCommandPrefix(), aleaConfig.getNamespace()));
         }
-        apiBuilder.addServerJoinListener(new AleaJoinListener(settingsRepository, aleaConfig.getNamespace()));
+        apiBuilder.addServerJoinListener(new AleaJoinListener(registry, settingsRepository, aleaConfig.getNamespace()));
         apiBuilder.setRecommendedTotalShards().join();
-        apiBuilder.loginAllShards().forEach(shardFuture -> shardFuture.thenAccept(
+        shardCompletions = virtualThreads ? VirtualThreads.newPerTaskExecutor() : null;
+        Executor completions = (shardCompletions != null) ? shardCompletions : Runnable::run;
+        apiBuilder.loginAllShards().forEach(shardFuture -> shardFuture.thenAcceptAsync(
                 api -> {
                     LOGGER.info(api.createBotInvite());
-                    if (shards.isEmpty())
+                    shards.add(api);
+                    // shards may complete concurrently on virtual threads
+                    if (firstShard.compareAndSet(false, true))
                     {
-                        shards.add(api);
                         if (aleaConfig.isEnableInteractions())
                         {
-                            CommandsHelper.setupCommands(api, aleaConfig.getCommandPrefix(), settingsRepository);
+                            CommandsHelper.setupCommands(api, aleaConfig.getCommandPrefix(), registry, settingsRepository);
                         }
                         else
                         {
-                            CommandsHelper.deleteCommands(api);
+                            CommandsHelper.deleteCommands(api, settingsRepository);
                         }
                     }
-                    else
-                    {
-                        shards.add(api);
-                    }
-                    EmojiIconSolver.build(api);
-                }
+                    EmojiIconSolver.register(api);
+                },
+                completions
             ).exceptionally(ExceptionLogger.get())
         );
     }
@@ -124,6 +144,18 @@ public class AleaDaemon implements Daemon
         {
             api.disconnect();
         });
+        if (shardCompletions != null)
+        {
+            shardCompletions.shutdown();
+        }
+        if (commandExecutor != null)
+        {
+            commandExecutor.close();
+        }
+        if (settingsRepository != null)
+        {
+            settingsRepository.close();
+        }
     }
 
     @Override
@@ -131,6 +163,9 @@ public class AleaDaemon implements Daemon
     {
         aleaConfig = null;
         shards = null;
+        settingsRepository = null;
+        commandExecutor = null;
+        shardCompletions = null;
     }
     
 }
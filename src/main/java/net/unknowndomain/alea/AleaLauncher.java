@@ -15,6 +15,7 @@
  */
 package net.unknowndomain.alea;
 
+import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +35,10 @@ public class AleaLauncher
         {
             start(args);
         } 
+        catch (ParseException ex)
+        {
+            AleaConfigParser.printUsage(ex.getMessage());
+        }
         catch (Exception ex)
         {
             LOGGER.error(null, ex);
@@ -16,8 +16,13 @@
 package net.unknowndomain.alea;
 
 import com.fasterxml.uuid.Generators;
+import com.fasterxml.uuid.impl.NameBasedGenerator;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.javacord.api.entity.message.MessageAuthor;
 import org.javacord.api.entity.user.User;
 
@@ -27,52 +32,91 @@ import org.javacord.api.entity.user.User;
  */
 public abstract class GenericListener
 {
+    private static final Map<UUID, CallerIds> CALLER_IDS = new ConcurrentHashMap<>();
+    
     private final UUID namespace;
+    private final CallerIds callerIds;
 
     public GenericListener(UUID namespace)
     {
         this.namespace = namespace;
+        this.callerIds = CALLER_IDS.computeIfAbsent(namespace, CallerIds::new);
     }
     
-    protected Optional<Long> readUserId(User user)
+    protected OptionalLong readUserId(User user)
     {
-        Optional<Long> retVal = Optional.of(user.getId());
+        OptionalLong retVal = OptionalLong.of(user.getId());
         return retVal;
     }
     
-    protected Optional<Long> readUserId(MessageAuthor author)
+    protected OptionalLong readUserId(MessageAuthor author)
     {
-        Optional<Long> retVal = Optional.empty();
+        OptionalLong retVal = OptionalLong.empty();
         if (author.isUser() && author.asUser().isPresent())
         {
             User discordUser = author.asUser().get();
-            retVal = Optional.of(discordUser.getId());
+            retVal = OptionalLong.of(discordUser.getId());
         }
         return retVal;
     }
     
     protected Optional<UUID> buildCallerId(User user)
+    {
+        return callerIds.get(user.getId());
+    }
+    
+    protected Optional<UUID> buildCallerId(MessageAuthor author)
     {
         Optional<UUID> retVal = Optional.empty();
-        Optional<Long> userId = readUserId(user);
-        if (userId.isPresent())
+        if (author.isUser())
         {
-            UUID callerUuid = Generators.nameBasedGenerator(namespace).generate(userId.get() + "L");
-            retVal = Optional.of(callerUuid);
+            retVal = callerIds.get(author.getId());
         }
         return retVal;
     }
     
-    protected Optional<UUID> buildCallerId(MessageAuthor author)
+    /**
+     * The caller UUIDs of the recent users, for one namespace.
+     *
+     * A direct-mapped table keyed by user id: a lookup is a single array
+     * read, and a collision just replaces the older caller.
+     */
+    private static final class CallerIds
     {
-        Optional<UUID> retVal = Optional.empty();
-        Optional<Long> userId = readUserId(author);
-        if (userId.isPresent())
+        private static final int SIZE = 4096;
+        
+        private final NameBasedGenerator generator;
+        private final AtomicReferenceArray<CallerId> table = new AtomicReferenceArray<>(SIZE);
+        
+        private CallerIds(UUID namespace)
         {
-            UUID callerUuid = Generators.nameBasedGenerator(namespace).generate(userId.get() + "L");
-            retVal = Optional.of(callerUuid);
+            this.generator = Generators.nameBasedGenerator(namespace);
+        }
+        
+        private Optional<UUID> get(long userId)
+        {
+            int slot = (int) (userId ^ (userId >>> 32)) * 0x9E3779B9 >>> 20;
+            CallerId cached = table.get(slot);
+            if ((cached != null) && (cached.userId == userId))
+            {
+                return cached.uuid;
+            }
+            CallerId callerId = new CallerId(userId, Optional.of(generator.generate(userId + "L")));
+            table.set(slot, callerId);
+            return callerId.uuid;
+        }
+    }
+    
+    private static final class CallerId
+    {
+        private final long userId;
+        private final Optional<UUID> uuid;
+        
+        private CallerId(long userId, Optional<UUID> uuid)
+        {
+            this.userId = userId;
+            this.uuid = uuid;
         }
-        return retVal;
     }
     
 }
@@ -17,34 +17,35 @@ package net.unknowndomain.alea.bot;
 
 import net.unknowndomain.alea.GenericListener;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import net.unknowndomain.alea.command.BasicCommand;
 import net.unknowndomain.alea.command.Command;
 import net.unknowndomain.alea.command.PrintableOutput;
-import net.unknowndomain.alea.expr.ExpressionCommand;
 import net.unknowndomain.alea.icon.AleaIcon;
 import net.unknowndomain.alea.messages.MsgBuilder;
+import net.unknowndomain.alea.messages.MsgStyle;
 import net.unknowndomain.alea.messages.ReturnMsg;
 import net.unknowndomain.alea.parser.PicocliParser;
 import net.unknowndomain.alea.roll.GenericResult;
 import net.unknowndomain.alea.settings.GuildConfigCommand;
 import net.unknowndomain.alea.settings.GuildSettings;
 import net.unknowndomain.alea.settings.SettingsRepository;
-import net.unknowndomain.alea.systems.ListSystemsCommand;
 import net.unknowndomain.alea.systems.RpgSystemCommand;
 import net.unknowndomain.alea.systems.RpgSystemOptions;
+import net.unknowndomain.alea.utils.CommandExecutor;
 import net.unknowndomain.alea.utils.EmojiIconSolver;
+import net.unknowndomain.alea.utils.IconAttachmentCache;
+import net.unknowndomain.alea.utils.IconAttachmentCache.PendingUploads;
 import org.apache.commons.lang3.StringUtils;
 import org.javacord.api.entity.channel.TextChannel;
 import org.javacord.api.entity.message.MessageAuthor;
 import org.javacord.api.entity.message.MessageBuilder;
-import org.javacord.api.entity.message.MessageDecoration;
 import org.javacord.api.event.message.MessageCreateEvent;
 import org.javacord.api.listener.message.MessageCreateListener;
 import org.slf4j.Logger;
@@ -59,22 +60,20 @@ public class AleaMsgListener extends GenericListener implements MessageCreateLis
     public static final String PREFIX = "!alea";
     private static final Pattern PATTERN = Pattern.compile("^(" + PREFIX + ")(( +)(?<parameters>.*))?$");
     
-    private static final List<BasicCommand> AVAILABLE_COMMANDS = new LinkedList<>();
     private static final Logger LOGGER = LoggerFactory.getLogger(AleaMsgListener.class);
     
+    private final CommandRegistry registry;
     private final SettingsRepository settingsRepository;
+    private final CommandExecutor executor;
     private final List<Command> SETTINGS_COMMANDS = new ArrayList<>();
     
-    static {
-        AVAILABLE_COMMANDS.add(new ListSystemsCommand());
-        AVAILABLE_COMMANDS.add(new ExpressionCommand());
-    }
-    
-    public AleaMsgListener(SettingsRepository settingsRepository, UUID namespace)
+    public AleaMsgListener(CommandRegistry registry, SettingsRepository settingsRepository, CommandExecutor executor, UUID namespace)
     {
         super(namespace);
+        this.registry = registry;
         this.settingsRepository = settingsRepository;
-        SETTINGS_COMMANDS.add(new GuildConfigCommand(settingsRepository));
+        this.executor = executor;
+        SETTINGS_COMMANDS.add(new GuildConfigCommand(registry, settingsRepository));
     }
     
     @Override
@@ -82,60 +81,71 @@ public class AleaMsgListener extends GenericListener implements MessageCreateLis
     {
         Matcher checkPrefix = PATTERN.matcher(event.getMessageContent());
         if (checkPrefix.matches()) {
-            Locale locale = Locale.ENGLISH;
-            LOGGER.debug("Default Locale: {}", locale);
-            Long guildId = null;
-            if (event.getServer().isPresent())
+            if (!executor.execute(() -> handleCommand(event, checkPrefix)))
             {
-                guildId = event.getServer().get().getId();
-                Optional<GuildSettings> guildSettings = settingsRepository.loadGuildSettings(guildId);
-                if (guildSettings.isPresent())
-                {
-                    LOGGER.debug("GuildSettings found");
-                    locale = guildSettings.get().getLanguage();
-                }
+                new MessageBuilder()
+                        .replyTo(event.getMessageId())
+                        .append(CommandExecutor.REJECTED_MESSAGE)
+                        .send(event.getChannel());
             }
-            boolean guildAdmin = event.getMessageAuthor().isServerAdmin();
-            LOGGER.debug("Locale: {}", locale);
-            String params = checkPrefix.group("parameters"); 
-            if (params == null || params.isEmpty() || params.startsWith("help"))
+        }
+    }
+    
+    private void handleCommand(MessageCreateEvent event, Matcher checkPrefix)
+    {
+        Locale locale = Locale.ENGLISH;
+        LOGGER.debug("Default Locale: {}", locale);
+        OptionalLong guildId = OptionalLong.empty();
+        if (event.getServer().isPresent())
+        {
+            guildId = OptionalLong.of(event.getServer().get().getId());
+            Optional<GuildSettings> guildSettings = settingsRepository.loadGuildSettings(guildId.getAsLong());
+            if (guildSettings.isPresent())
             {
-                printHelp(event.getChannel(), guildAdmin);
+                LOGGER.debug("GuildSettings found");
+                locale = guildSettings.get().getLanguage();
             }
-            else
-            {
-                MessageBuilder builder = new MessageBuilder();
-                MessageAuthor author = event.getMessageAuthor();
+        }
+        boolean guildAdmin = event.getMessageAuthor().isServerAdmin();
+        LOGGER.debug("Locale: {}", locale);
+        String params = checkPrefix.group("parameters"); 
+        if (params == null || params.isEmpty() || params.startsWith("help"))
+        {
+            printHelp(event.getChannel(), guildAdmin);
+        }
+        else
+        {
+            MessageBuilder builder = new MessageBuilder();
+            MessageAuthor author = event.getMessageAuthor();
 //                Optional<Long> callerId = readUserId(author);
-                Optional<UUID> callerId = buildCallerId(author);
-                builder.replyTo(event.getMessageId());
-                
-                Optional<Command> parsedCmd = parseCommand(params);
-                
-                if (parsedCmd.isPresent())
+            Optional<UUID> callerId = buildCallerId(author);
+            builder.replyTo(event.getMessageId());
+            
+            Optional<Command> parsedCmd = parseCommand(params);
+            
+            if (parsedCmd.isPresent())
+            {
+                Command cmd = parsedCmd.get();
+                ReturnMsg msg;
+                LOGGER.debug("guildAdmin:", guildAdmin);
+                LOGGER.debug("guildId:", guildId);
+                if ((cmd instanceof GuildConfigCommand) && (guildId.isPresent()) && (guildAdmin))
                 {
-                    Command cmd = parsedCmd.get();
-                    ReturnMsg msg;
-                    LOGGER.debug("guildAdmin:", guildAdmin);
-                    LOGGER.debug("guildId:", guildId);
-                    if ((cmd instanceof GuildConfigCommand) && (guildId != null) && (guildAdmin))
-                    {
-                        GuildConfigCommand gcc = (GuildConfigCommand) cmd;
-                        msg = gcc.execCommand(params, event.getApi(), guildId);
-                    }
-                    else
-                    {
-                        msg = runCommand(cmd, params, locale, callerId);
-                    }
-                    MsgFormatter.appendMessage(builder, msg);
-                    builder.send(event.getChannel());
+                    GuildConfigCommand gcc = (GuildConfigCommand) cmd;
+                    msg = gcc.execCommand(params, event.getApi(), guildId.getAsLong());
                 }
                 else
                 {
-                    builder.append("Error: command not available");
-                    builder.send(event.getChannel());
-                    printHelp(event.getChannel(), guildAdmin);
+                    msg = runCommand(cmd, params, locale, callerId);
                 }
+                PendingUploads uploads = MsgFormatter.appendMessage(builder, msg);
+                builder.send(event.getChannel()).thenAccept(sent -> IconAttachmentCache.getInstance().recordUploads(sent, uploads));
+            }
+            else
+            {
+                builder.append("Error: command not available");
+                builder.send(event.getChannel());
+                printHelp(event.getChannel(), guildAdmin);
             }
         }
     }
@@ -148,14 +158,14 @@ public class AleaMsgListener extends GenericListener implements MessageCreateLis
         {
             RpgSystemCommand rpg = (RpgSystemCommand) cmd;
             RpgSystemOptions options = rpg.buildOptions();
-            Pattern sysPattern = Pattern.compile("^(?<" + Command.CMD_NAME + ">" + rpg.getCommandRegex() + ")(( )(?<" + Command.CMD_PARAMS + ">.*))?$");
-            Matcher sysFilter = sysPattern.matcher(params);
-            if (sysFilter.matches())
+            Optional<Matcher> match = registry.matchSystem(rpg, params);
+            if (match.isPresent())
             {
+                Matcher sysFilter = match.get();
                 String sysArgs = sysFilter.group(Command.CMD_PARAMS);
                 if (sysArgs != null)
                 {
-                    PicocliParser.parseArgs(options, sysArgs.split(" "));
+                    PicocliParser.parseArgs(options, sysArgs.split("\\s+"));
                 }
                 else
                 {
@@ -168,7 +178,8 @@ public class AleaMsgListener extends GenericListener implements MessageCreateLis
                 }
                 else
                 {
-                    msg = PicocliParser.printHelp(sysFilter.group(Command.CMD_NAME), options, locale);
+                    String cmdName = sysFilter.group(Command.CMD_NAME);
+                    msg = registry.getHelp(cmdName, locale, false, () -> PicocliParser.printHelp(cmdName, options, locale));
                 }
             }
         }
@@ -182,7 +193,7 @@ public class AleaMsgListener extends GenericListener implements MessageCreateLis
             }
             else
             {
-                msg = basic.printHelp(locale);
+                msg = registry.getHelp(basic.getClass().getName(), locale, false, () -> basic.printHelp(locale));
             }
         }
         return msg;
@@ -190,12 +201,10 @@ public class AleaMsgListener extends GenericListener implements MessageCreateLis
     
     private Optional<Command> parseCommand(String parameters)
     {
-        for (Command cmd : AVAILABLE_COMMANDS)
+        Optional<BasicCommand> basic = registry.findBasicCommand(parameters);
+        if (basic.isPresent())
         {
-            if (cmd.checkCommand(parameters))
-            {
-                return Optional.of(cmd);
-            }
+            return Optional.of(basic.get());
         }
         for (Command cmd : SETTINGS_COMMANDS)
         {
@@ -204,20 +213,23 @@ public class AleaMsgListener extends GenericListener implements MessageCreateLis
                 return Optional.of(cmd);
             }
         }
-        for (Command cmd : RpgSystemCommand.LOADER)
+        Optional<RpgSystemCommand> system = registry.findSystem(parameters);
+        if (system.isPresent())
         {
-            if (cmd.checkCommand(parameters))
-            {
-                return Optional.of(cmd);
-            }
+            return Optional.of(system.get());
         }
-        
         return Optional.empty();
     }
     
     private void printHelp(TextChannel channel, boolean guildAdmin)
     {
         MessageBuilder output = new MessageBuilder();
+        MsgFormatter.appendMessage(output, registry.getHelp(PREFIX, Locale.ROOT, guildAdmin, () -> renderHelp(guildAdmin)));
+        output.send(channel);
+    }
+    
+    private static ReturnMsg renderHelp(boolean guildAdmin)
+    {
         StringBuilder sb = new StringBuilder("Usage: ").append("!alea <command> <params>\n");
         sb.append("Commands:\n");
         sb.append(StringUtils.rightPad("   help  ", 20)).append(" | Print this help").append("\n");
@@ -228,8 +240,7 @@ public class AleaMsgListener extends GenericListener implements MessageCreateLis
         {
             sb.append(StringUtils.rightPad("   guild-config", 20)).append(" | (WIP) Set config variables for the current guild").append("\n");
         }
-        output.append(sb.toString(), MessageDecoration.CODE_LONG);
-        output.send(channel);
+        return new MsgBuilder().append(sb.toString(), MsgStyle.CODE).build();
     }
     
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.bot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.unknowndomain.alea.command.BasicCommand;
+import net.unknowndomain.alea.command.Command;
+import net.unknowndomain.alea.expr.ExpressionCommand;
+import net.unknowndomain.alea.messages.ReturnMsg;
+import net.unknowndomain.alea.settings.SystemIndex;
+import net.unknowndomain.alea.systems.ListSystemsCommand;
+import net.unknowndomain.alea.systems.RpgSystemCommand;
+import net.unknowndomain.alea.systems.RpgSystemDescriptor;
+
+/**
+ * Immutable view of the commands available to the bot.
+ *
+ * It is built once at startup: the system patterns are compiled here and the
+ * systems are indexed both by command token (shortcut and long command) and by
+ * system id, so that the listeners never need to walk the
+ * {@link RpgSystemCommand#LOADER}; the patterns are only tried when the token
+ * lookup misses. Building the registry also assigns the
+ * {@link SystemIndex} ordinals of the installed systems.
+ *
+ * The help messages are rendered once per command, locale and admin flag and
+ * kept for the lifetime of the registry.
+ *
+ * @author journeyman
+ */
+public class CommandRegistry
+{
+    private final List<BasicCommand> basicCommands;
+    private final List<RpgSystemCommand> systems;
+    private final Map<String, RpgSystemCommand> tokenIndex;
+    private final Map<String, RpgSystemCommand> systemIndex;
+    private final Map<RpgSystemCommand, Pattern> systemPatterns;
+    private final Map<HelpKey, ReturnMsg> helpCache = new ConcurrentHashMap<>();
+
+    private CommandRegistry(List<BasicCommand> basicCommands, Iterable<RpgSystemCommand> loader)
+    {
+        List<RpgSystemCommand> sysList = new ArrayList<>();
+        Map<String, RpgSystemCommand> tokens = new HashMap<>();
+        Map<String, RpgSystemCommand> ids = new HashMap<>();
+        Map<RpgSystemCommand, Pattern> patterns = new IdentityHashMap<>();
+        for (RpgSystemCommand system : loader)
+        {
+            RpgSystemDescriptor desc = system.getCommandDesc();
+            sysList.add(system);
+            SystemIndex.ordinal(desc.getCommand());
+            ids.putIfAbsent(desc.getCommand(), system);
+            if (desc.getShortcut() != null)
+            {
+                tokens.putIfAbsent(desc.getShortcut(), system);
+            }
+            tokens.putIfAbsent(desc.getCommand(), system);
+            patterns.put(system, Pattern.compile("^(?<" + Command.CMD_NAME + ">" + system.getCommandRegex() + ")((\\s)(?<" + Command.CMD_PARAMS + ">.*))?$", Pattern.DOTALL));
+        }
+        this.basicCommands = Collections.unmodifiableList(new ArrayList<>(basicCommands));
+        this.systems = Collections.unmodifiableList(sysList);
+        this.tokenIndex = Collections.unmodifiableMap(tokens);
+        this.systemIndex = Collections.unmodifiableMap(ids);
+        this.systemPatterns = patterns;
+    }
+
+    public static CommandRegistry build()
+    {
+        List<BasicCommand> basic = new ArrayList<>();
+        basic.add(new ListSystemsCommand());
+        basic.add(new ExpressionCommand());
+        return new CommandRegistry(basic, RpgSystemCommand.LOADER);
+    }
+
+    public List<BasicCommand> getBasicCommands()
+    {
+        return basicCommands;
+    }
+
+    public List<RpgSystemCommand> getSystems()
+    {
+        return systems;
+    }
+
+    public Map<String, RpgSystemCommand> getTokenIndex()
+    {
+        return tokenIndex;
+    }
+
+    /**
+     * Finds the basic command able to handle the given command line.
+     *
+     * @param cmdLine the command line, without the bot prefix
+     * @return the matching command, if any
+     */
+    public Optional<BasicCommand> findBasicCommand(String cmdLine)
+    {
+        for (BasicCommand cmd : basicCommands)
+        {
+            if (cmd.checkCommand(cmdLine))
+            {
+                return Optional.of(cmd);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Finds the system addressed by the given command line: by its first
+     * token, or else by the system patterns, which may accept more than the
+     * command and the shortcut.
+     *
+     * @param cmdLine the command line, without the bot prefix
+     * @return the matching system, if any
+     */
+    public Optional<RpgSystemCommand> findSystem(String cmdLine)
+    {
+        RpgSystemCommand system = tokenIndex.get(firstToken(cmdLine));
+        if (system != null)
+        {
+            return Optional.of(system);
+        }
+        for (RpgSystemCommand candidate : systems)
+        {
+            if (matchSystem(candidate, cmdLine).isPresent())
+            {
+                return Optional.of(candidate);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Cuts the command line at the first whitespace.
+     *
+     * @param cmdLine the command line, without the bot prefix
+     * @return the command token
+     */
+    static String firstToken(String cmdLine)
+    {
+        for (int i = 0; i < cmdLine.length(); i++)
+        {
+            if (Character.isWhitespace(cmdLine.charAt(i)))
+            {
+                return cmdLine.substring(0, i);
+            }
+        }
+        return cmdLine;
+    }
+
+    /**
+     * Gets the system registered with the given system id.
+     *
+     * @param systemId the system id, as in {@link RpgSystemDescriptor#getCommand()}
+     * @return the system, if installed
+     */
+    public Optional<RpgSystemCommand> getSystem(String systemId)
+    {
+        return Optional.ofNullable(systemIndex.get(systemId));
+    }
+
+    /**
+     * Matches the command line against the precompiled pattern of the system.
+     *
+     * The returned matcher exposes the {@link Command#CMD_NAME} and
+     * {@link Command#CMD_PARAMS} groups.
+     *
+     * @param system the system
+     * @param cmdLine the command line, without the bot prefix
+     * @return the matcher, if the command line matches
+     */
+    public Optional<Matcher> matchSystem(RpgSystemCommand system, String cmdLine)
+    {
+        Matcher matcher = systemPatterns.get(system).matcher(cmdLine);
+        if (matcher.matches())
+        {
+            return Optional.of(matcher);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Gets the help of a command, rendering it only the first time.
+     *
+     * @param command the command name, as shown in the help
+     * @param locale the locale of the help
+     * @param admin whether the help includes the admin commands
+     * @param renderer renders the help when not cached yet
+     * @return the help message
+     */
+    public ReturnMsg getHelp(String command, Locale locale, boolean admin, Supplier<ReturnMsg> renderer)
+    {
+        return helpCache.computeIfAbsent(new HelpKey(command, locale, admin), key -> renderer.get());
+    }
+
+    private static final class HelpKey
+    {
+        private final String command;
+        private final Locale locale;
+        private final boolean admin;
+
+        private HelpKey(String command, Locale locale, boolean admin)
+        {
+            this.command = command;
+            this.locale = locale;
+            this.admin = admin;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(command, locale, admin);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof HelpKey))
+            {
+                return false;
+            }
+            HelpKey other = (HelpKey) obj;
+            return (admin == other.admin) && Objects.equals(command, other.command) && Objects.equals(locale, other.locale);
+        }
+    }
+
+}
@@ -15,10 +15,12 @@
  */
 package net.unknowndomain.alea.bot;
 
-import java.util.HashSet;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
-import java.util.Set;
-import net.unknowndomain.alea.icon.IconSolver;
+import net.unknowndomain.alea.icon.AleaIcon;
 import net.unknowndomain.alea.messages.MsgFilePart;
 import net.unknowndomain.alea.messages.MsgIconPart;
 import net.unknowndomain.alea.messages.MsgTextPart;
@@ -27,10 +29,14 @@ import net.unknowndomain.alea.messages.MsgStyle;
 import net.unknowndomain.alea.messages.MsgUrlPart;
 import net.unknowndomain.alea.messages.ReturnMsg;
 import net.unknowndomain.alea.utils.EmojiIconSolver;
+import net.unknowndomain.alea.utils.IconAttachmentCache;
+import net.unknowndomain.alea.utils.IconAttachmentCache.IconAttachment;
+import net.unknowndomain.alea.utils.IconAttachmentCache.PendingUploads;
 import org.javacord.api.entity.emoji.CustomEmoji;
 import org.javacord.api.entity.message.MessageBuilder;
 import org.javacord.api.entity.message.MessageDecoration;
-import org.javacord.api.interaction.callback.InteractionMessageBuilderBase;
+import org.javacord.api.entity.message.embed.EmbedBuilder;
+import org.javacord.api.interaction.callback.ExtendedInteractionMessageBuilderBase;
 
 /**
  *
@@ -38,6 +44,46 @@ import org.javacord.api.interaction.callback.InteractionMessageBuilderBase;
  */
 public class MsgFormatter
 {
+    private static final int MAX_EMBEDS = 10;
+    
+    private static final int BOLD = 1;
+    private static final int ITALICS = 1 << 1;
+    private static final int UNDERLINE = 1 << 2;
+    private static final int STRIKEOUT = 1 << 3;
+    private static final int SPOILER = 1 << 4;
+    private static final int CODE_SIMPLE = 1 << 5;
+    private static final int CODE_LONG = 1 << 6;
+    private static final MessageDecoration [] MASK_DECORATIONS = {
+        MessageDecoration.BOLD,
+        MessageDecoration.ITALICS,
+        MessageDecoration.UNDERLINE,
+        MessageDecoration.STRIKEOUT,
+        MessageDecoration.SPOILER,
+        MessageDecoration.CODE_SIMPLE,
+        MessageDecoration.CODE_LONG
+    };
+    
+    /**
+     * The decorations of every style combination, indexed by style mask and
+     * shared by all the text parts.
+     */
+    private static final MessageDecoration [][] DECORATIONS = new MessageDecoration[1 << MASK_DECORATIONS.length][];
+    
+    static {
+        for (int mask = 0; mask < DECORATIONS.length; mask++)
+        {
+            MessageDecoration [] decor = new MessageDecoration[Integer.bitCount(mask)];
+            int idx = 0;
+            for (int bit = 0; bit < MASK_DECORATIONS.length; bit++)
+            {
+                if ((mask & (1 << bit)) != 0)
+                {
+                    decor[idx++] = MASK_DECORATIONS[bit];
+                }
+            }
+            DECORATIONS[mask] = decor;
+        }
+    }
     
     public static MessageBuilder formatMessage(ReturnMsg message)
     {
@@ -46,14 +92,44 @@ public class MsgFormatter
         return msgBuilder;
     }
     
-    public static void appendMessage(MessageBuilder msgBuilder, ReturnMsg message)
+    /**
+     * Appends a message to a builder.
+     *
+     * @param msgBuilder the builder
+     * @param message the message
+     * @return the icon images attached, to be passed to
+     * {@link IconAttachmentCache#recordUploads} once the message is sent
+     */
+    public static PendingUploads appendMessage(MessageBuilder msgBuilder, ReturnMsg message)
+    {
+        return render(message, new MessageTarget(msgBuilder));
+    }
+    
+    /**
+     * Appends a message to an interaction response.
+     *
+     * @param msgBuilder the builder
+     * @param message the message
+     * @return the icon images attached, to be passed to
+     * {@link IconAttachmentCache#recordUploads} once the message is sent
+     */
+    public static PendingUploads appendMessage(ExtendedInteractionMessageBuilderBase<?> msgBuilder, ReturnMsg message)
+    {
+        return render(message, new InteractionTarget(msgBuilder));
+    }
+    
+    private static PendingUploads render(ReturnMsg message, Target target)
     {
+        IconAttachmentCache iconCache = IconAttachmentCache.getInstance();
+        PendingUploads uploads = new PendingUploads();
+        List<AleaIcon> composite = iconCache.isCompositeIcons() ? new ArrayList<>() : null;
+        int embeds = 0;
         for (MsgPart msgPart : message.getParts())
         {
             if (msgPart instanceof MsgTextPart)
             {
                 MsgTextPart part = (MsgTextPart) msgPart;
-                formatTextPart(msgBuilder, part);
+                formatTextPart(target, part);
             }
             else if (msgPart instanceof MsgIconPart)
             {
@@ -61,136 +137,194 @@ public class MsgFormatter
                 Optional<CustomEmoji> emoji = EmojiIconSolver.getInstance().solveIcon(part.getIcon());
                 if (emoji.isPresent())
                 {
-                    msgBuilder.append(emoji.get().getMentionTag());
+                    target.append(emoji.get().getMentionTag(), DECORATIONS[0]);
+                }
+                else if (composite != null)
+                {
+                    composite.add(part.getIcon());
                 }
                 else
                 {
-                    IconSolver.loadIcon(part.getIcon()).ifPresent(
-                            image -> {
-                                msgBuilder.addAttachment(image.getData(), image.getFileName());
-                            }
-                    );
+                    Optional<IconAttachment> image = iconCache.solveIcon(part.getIcon());
+                    if (image.isPresent())
+                    {
+                        embeds = appendImage(target, iconCache, image.get(), embeds, uploads);
+                    }
                 }
             }
             else if (msgPart instanceof MsgFilePart)
             {
                 MsgFilePart part = (MsgFilePart) msgPart;
-                msgBuilder.addAttachment(part.getData(), part.getFileName());
+                target.addAttachment(part.getData(), part.getFileName());
             }
             else if (msgPart instanceof MsgUrlPart)
             {
                 MsgUrlPart part = (MsgUrlPart) msgPart;
-                msgBuilder.addAttachment(part.getUrl());
+                target.addAttachment(part.getUrl());
             }
         }
+        appendComposite(target, iconCache, composite, embeds, uploads);
+        return uploads;
     }
     
-    public static void appendMessage(InteractionMessageBuilderBase msgBuilder, ReturnMsg message)
+    private static void appendComposite(Target target, IconAttachmentCache iconCache, List<AleaIcon> composite, int embeds, PendingUploads uploads)
     {
-        for (MsgPart msgPart : message.getParts())
+        if ((composite != null) && !composite.isEmpty())
         {
-            if (msgPart instanceof MsgTextPart)
+            Optional<IconAttachment> image = (composite.size() == 1) ? iconCache.solveIcon(composite.get(0)) : iconCache.solveComposite(composite);
+            if (image.isPresent())
             {
-                MsgTextPart part = (MsgTextPart) msgPart;
-                formatTextPart(msgBuilder, part);
+                appendImage(target, iconCache, image.get(), embeds, uploads);
             }
-            else if (msgPart instanceof MsgIconPart)
-            {
-                MsgIconPart part = (MsgIconPart) msgPart;
-                Optional<CustomEmoji> emoji = EmojiIconSolver.getInstance().solveIcon(part.getIcon());
-                if (emoji.isPresent())
-                {
-                    msgBuilder.append(emoji.get().getMentionTag());
-                }
-            }
-//            else if (msgPart instanceof MsgFilePart)
-//            {
-//                MsgFilePart part = (MsgFilePart) msgPart;
-//                msgBuilder..addAttachment(part.getData(), part.getFileName());
-//            }
-//            else if (msgPart instanceof MsgUrlPart)
-//            {
-//                MsgUrlPart part = (MsgUrlPart) msgPart;
-//                msgBuilder..addAttachment(part.getUrl());
-//            }
         }
     }
     
-    private static void formatTextPart(InteractionMessageBuilderBase msgBuilder, MsgTextPart part)
+    private static int appendImage(Target target, IconAttachmentCache iconCache, IconAttachment image, int embeds, PendingUploads uploads)
+    {
+        String url = iconCache.getUrl(image);
+        if ((url != null) && (embeds < MAX_EMBEDS))
+        {
+            target.addEmbed(url);
+            return embeds + 1;
+        }
+        if (uploads.add(image))
+        {
+            // a repeated icon is attached only once per message
+            target.addAttachment(image.getData(), image.getFileName());
+        }
+        return embeds;
+    }
+    
+    private static void formatTextPart(Target target, MsgTextPart part)
     {
-        Set<MessageDecoration> decor = new HashSet<>();
         String text = part.getMsgText();
-        if (part.getMsgStyle().contains(MsgStyle.BOLD))
+        target.append(text, decorations(part.getMsgStyle(), text));
+    }
+    
+    /**
+     * Looks up the decorations of a text part: the text styles nest in
+     * declaration order, with the code block always innermost.
+     *
+     * @param styles the styles of the part
+     * @param text the text of the part
+     * @return the shared decorations, not to be modified
+     */
+    static MessageDecoration [] decorations(Collection<MsgStyle> styles, String text)
+    {
+        int mask = 0;
+        if (styles.contains(MsgStyle.BOLD))
         {
-            decor.add(MessageDecoration.BOLD);
+            mask |= BOLD;
         }
-        if (part.getMsgStyle().contains(MsgStyle.ITALIC))
+        if (styles.contains(MsgStyle.ITALIC))
         {
-            decor.add(MessageDecoration.ITALICS);
+            mask |= ITALICS;
         }
-        if (part.getMsgStyle().contains(MsgStyle.UNDERLINE))
+        if (styles.contains(MsgStyle.UNDERLINE))
         {
-            decor.add(MessageDecoration.UNDERLINE);
+            mask |= UNDERLINE;
         }
-        if (part.getMsgStyle().contains(MsgStyle.STRIKETHRU))
+        if (styles.contains(MsgStyle.STRIKETHRU))
         {
-            decor.add(MessageDecoration.STRIKEOUT);
+            mask |= STRIKEOUT;
         }
-        if (part.getMsgStyle().contains(MsgStyle.SPOILER))
+        if (styles.contains(MsgStyle.SPOILER))
         {
-            decor.add(MessageDecoration.SPOILER);
+            mask |= SPOILER;
         }
-        if (part.getMsgStyle().contains(MsgStyle.CODE))
+        if (styles.contains(MsgStyle.CODE))
         {
             if (text.contains("\n") || text.length() > 120)
             {
-                decor.add(MessageDecoration.CODE_LONG);
+                mask |= CODE_LONG;
             }
             else
             {
-                decor.add(MessageDecoration.CODE_SIMPLE);
+                mask |= CODE_SIMPLE;
             }
         }
-        MessageDecoration [] tmp = new MessageDecoration[decor.size()];
-        msgBuilder.append(text, decor.toArray(tmp));
+        return DECORATIONS[mask];
     }
     
-    private static void formatTextPart(MessageBuilder msgBuilder, MsgTextPart part)
+    /**
+     * The operations shared by the message and the interaction builders.
+     */
+    private interface Target
     {
-        Set<MessageDecoration> decor = new HashSet<>();
-        String text = part.getMsgText();
-        if (part.getMsgStyle().contains(MsgStyle.BOLD))
+        void append(String text, MessageDecoration [] decorations);
+        
+        void addEmbed(String url);
+        
+        void addAttachment(byte [] data, String fileName);
+        
+        void addAttachment(URL url);
+    }
+    
+    private static class MessageTarget implements Target
+    {
+        private final MessageBuilder msgBuilder;
+        
+        private MessageTarget(MessageBuilder msgBuilder)
+        {
+            this.msgBuilder = msgBuilder;
+        }
+        
+        @Override
+        public void append(String text, MessageDecoration [] decorations)
         {
-            decor.add(MessageDecoration.BOLD);
+            msgBuilder.append(text, decorations);
         }
-        if (part.getMsgStyle().contains(MsgStyle.ITALIC))
+        
+        @Override
+        public void addEmbed(String url)
         {
-            decor.add(MessageDecoration.ITALICS);
+            msgBuilder.addEmbed(new EmbedBuilder().setImage(url));
         }
-        if (part.getMsgStyle().contains(MsgStyle.UNDERLINE))
+        
+        @Override
+        public void addAttachment(byte [] data, String fileName)
         {
-            decor.add(MessageDecoration.UNDERLINE);
+            msgBuilder.addAttachment(data, fileName);
         }
-        if (part.getMsgStyle().contains(MsgStyle.STRIKETHRU))
+        
+        @Override
+        public void addAttachment(URL url)
         {
-            decor.add(MessageDecoration.STRIKEOUT);
+            msgBuilder.addAttachment(url);
         }
-        if (part.getMsgStyle().contains(MsgStyle.SPOILER))
+    }
+    
+    private static class InteractionTarget implements Target
+    {
+        private final ExtendedInteractionMessageBuilderBase<?> msgBuilder;
+        
+        private InteractionTarget(ExtendedInteractionMessageBuilderBase<?> msgBuilder)
         {
-            decor.add(MessageDecoration.SPOILER);
+            this.msgBuilder = msgBuilder;
         }
-        if (part.getMsgStyle().contains(MsgStyle.CODE))
+        
+        @Override
+        public void append(String text, MessageDecoration [] decorations)
         {
-            if (text.contains("\n") || text.length() > 120)
-            {
-                decor.add(MessageDecoration.CODE_LONG);
-            }
-            else
-            {
-                decor.add(MessageDecoration.CODE_SIMPLE);
-            }
+            msgBuilder.append(text, decorations);
+        }
+        
+        @Override
+        public void addEmbed(String url)
+        {
+            msgBuilder.addEmbed(new EmbedBuilder().setImage(url));
+        }
+        
+        @Override
+        public void addAttachment(byte [] data, String fileName)
+        {
+            msgBuilder.addAttachment(data, fileName);
+        }
+        
+        @Override
+        public void addAttachment(URL url)
+        {
+            msgBuilder.addAttachment(url);
         }
-        MessageDecoration [] tmp = new MessageDecoration[decor.size()];
-        msgBuilder.append(text, decor.toArray(tmp));
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.bot;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import net.unknowndomain.alea.settings.SettingsRepository;
+import net.unknowndomain.alea.systems.RpgSystemCommand;
+import net.unknowndomain.alea.utils.CommandExecutor;
+import org.javacord.api.entity.message.MessageBuilder;
+import org.javacord.api.event.message.MessageCreateEvent;
+import org.javacord.api.listener.message.MessageCreateListener;
+
+/**
+ * Single listener for the system specific <code>!bang</code> commands.
+ *
+ * Messages not starting with <code>!</code> are discarded on the first char,
+ * the others are routed to the matching {@link SystemListener} with a lookup
+ * on the command token, so the cost per message does not depend on the number
+ * of installed systems; only a missing token falls back to the system
+ * patterns. The matching listener runs on the {@link CommandExecutor}.
+ *
+ * @author journeyman
+ */
+public class SystemDispatcher implements MessageCreateListener
+{
+    private static final char BANG = '!';
+
+    private final CommandRegistry registry;
+    private final Map<RpgSystemCommand, SystemListener> listeners;
+    private final CommandExecutor executor;
+
+    public SystemDispatcher(CommandRegistry registry, SettingsRepository settingsRepository, CommandExecutor executor, UUID namespace)
+    {
+        this.registry = registry;
+        this.executor = executor;
+        Map<RpgSystemCommand, SystemListener> bySystem = new IdentityHashMap<>();
+        for (RpgSystemCommand system : registry.getSystems())
+        {
+            bySystem.put(system, new SystemListener(system, registry, settingsRepository, namespace));
+        }
+        this.listeners = Collections.unmodifiableMap(bySystem);
+    }
+
+    /**
+     * Finds the listener of the system addressed by a message.
+     *
+     * @param content the message content
+     * @return the listener, or null if the message is not a system command
+     */
+    SystemListener route(String content)
+    {
+        if (content.length() < 2 || content.charAt(0) != BANG)
+        {
+            return null;
+        }
+        Optional<RpgSystemCommand> system = registry.findSystem(content.substring(1));
+        return system.isPresent() ? listeners.get(system.get()) : null;
+    }
+
+    @Override
+    public void onMessageCreate(MessageCreateEvent event)
+    {
+        SystemListener listener = route(event.getMessageContent());
+        if (listener != null)
+        {
+            if (!executor.execute(() -> listener.onMessageCreate(event)))
+            {
+                new MessageBuilder()
+                        .replyTo(event.getMessageId())
+                        .append(CommandExecutor.REJECTED_MESSAGE)
+                        .send(event.getChannel());
+            }
+        }
+    }
+
+}
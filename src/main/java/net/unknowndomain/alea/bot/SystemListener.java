@@ -20,14 +20,16 @@ import java.util.Locale;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import net.unknowndomain.alea.command.Command;
 import net.unknowndomain.alea.parser.PicocliParser;
 import net.unknowndomain.alea.roll.GenericResult;
 import net.unknowndomain.alea.settings.GuildSettings;
 import net.unknowndomain.alea.settings.SettingsRepository;
+import net.unknowndomain.alea.settings.SystemIndex;
 import net.unknowndomain.alea.systems.RpgSystemCommand;
 import net.unknowndomain.alea.systems.RpgSystemOptions;
+import net.unknowndomain.alea.utils.IconAttachmentCache;
+import net.unknowndomain.alea.utils.IconAttachmentCache.PendingUploads;
 import org.javacord.api.entity.message.MessageAuthor;
 import org.javacord.api.entity.message.MessageBuilder;
 import org.javacord.api.event.message.MessageCreateEvent;
@@ -39,45 +41,56 @@ import org.javacord.api.listener.message.MessageCreateListener;
  */
 public class SystemListener extends GenericListener implements MessageCreateListener
 {
-    private final Pattern PATTERN; 
-    
     private final RpgSystemCommand system;
+    private final CommandRegistry registry;
     private final SettingsRepository settingsRepository;
+    private final int systemOrdinal;
     
-    public SystemListener(RpgSystemCommand system, SettingsRepository settingsRepository, UUID namespace)
+    public SystemListener(RpgSystemCommand system, CommandRegistry registry, SettingsRepository settingsRepository, UUID namespace)
     {
         super(namespace);
         this.system = system;
+        this.registry = registry;
         this.settingsRepository = settingsRepository;
-        PATTERN = Pattern.compile("^!(?<" + Command.CMD_NAME + ">" + system.getCommandRegex() + ")(( )(?<" + Command.CMD_PARAMS + ">.*))?$");
+        this.systemOrdinal = SystemIndex.ordinal(system.getCommandDesc().getCommand());
+    }
+    
+    RpgSystemCommand getSystem()
+    {
+        return system;
     }
     
     @Override
     public void onMessageCreate(MessageCreateEvent event)
     {
-        Matcher checkPrefix = PATTERN.matcher(event.getMessageContent());
-        if (checkPrefix.matches()) {
+        String content = event.getMessageContent();
+        if (!content.startsWith("!"))
+        {
+            return;
+        }
+        Optional<Matcher> match = registry.matchSystem(system, content.substring(1));
+        if (match.isPresent()) {
+            Matcher checkPrefix = match.get();
             Locale locale = Locale.ENGLISH;
             if (event.getServer().isPresent())
             {
-                Long guildId = event.getServer().get().getId();
+                long guildId = event.getServer().get().getId();
                 Optional<GuildSettings> guildSettings = settingsRepository.loadGuildSettings(guildId);
                 if (guildSettings.isPresent())
                 {
                     locale = guildSettings.get().getLanguage();
-                    if (!guildSettings.get().getSystems().get(system.getCommandDesc().getCommand()).isEnabled())
+                    if (!guildSettings.get().isSystemEnabled(systemOrdinal))
                     {
                         return;
                     }
                 }
             }
             MessageBuilder builder = new MessageBuilder();
-            String cmdLine = event.getMessageContent().substring(1);
             RpgSystemOptions options = system.buildOptions();
             String args = checkPrefix.group(Command.CMD_PARAMS);
             if (args != null)
             {
-                PicocliParser.parseArgs(options, args.split(" "));
+                PicocliParser.parseArgs(options, args.split("\\s+"));
             }
             else
             {
@@ -92,15 +105,18 @@ public class SystemListener extends GenericListener implements MessageCreateList
 //                builder.append(author.asUser().get()).appendNewLine();
 //            }
             Optional<GenericResult> res = system.execCommand(options, locale, callerId);
+            PendingUploads uploads;
             if (res.isPresent())
             {
-                MsgFormatter.appendMessage(builder, res.get().buildMessage());
+                uploads = MsgFormatter.appendMessage(builder, res.get().buildMessage());
             }
             else
             {
-                MsgFormatter.appendMessage(builder, PicocliParser.printHelp(checkPrefix.group(Command.CMD_NAME), options, locale));
+                String cmdName = checkPrefix.group(Command.CMD_NAME);
+                Locale helpLocale = locale;
+                uploads = MsgFormatter.appendMessage(builder, registry.getHelp(cmdName, helpLocale, false, () -> PicocliParser.printHelp(cmdName, options, helpLocale)));
             }
-            builder.send(event.getChannel());
+            builder.send(event.getChannel()).thenAccept(sent -> IconAttachmentCache.getInstance().recordUploads(sent, uploads));
             
         }
     }
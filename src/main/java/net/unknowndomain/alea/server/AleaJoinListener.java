@@ -19,9 +19,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
 import net.unknowndomain.alea.GenericListener;
+import net.unknowndomain.alea.bot.CommandRegistry;
 import net.unknowndomain.alea.settings.SettingsRepository;
 import net.unknowndomain.alea.slash.CommandsHelper;
 import net.unknowndomain.alea.systems.RpgSystemCommand;
+import net.unknowndomain.alea.systems.RpgSystemDescriptor;
 import org.javacord.api.event.server.ServerJoinEvent;
 import org.javacord.api.listener.server.ServerJoinListener;
 import org.slf4j.Logger;
@@ -35,23 +37,26 @@ public class AleaJoinListener extends GenericListener implements ServerJoinListe
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(AleaJoinListener.class);
     
+    private final CommandRegistry registry;
     private final SettingsRepository settingsRepository;
     
-    public AleaJoinListener(SettingsRepository settingsRepository, UUID namespace)
+    public AleaJoinListener(CommandRegistry registry, SettingsRepository settingsRepository, UUID namespace)
     {
         super(namespace);
+        this.registry = registry;
         this.settingsRepository = settingsRepository;
     }
 
     @Override
     public void onServerJoin(ServerJoinEvent event)
     {
-        Long guildId = event.getServer().getId();
-        List cose = new LinkedList<>();
-        for (RpgSystemCommand cmd : RpgSystemCommand.LOADER)
+        long guildId = event.getServer().getId();
+        List<RpgSystemDescriptor> descriptors = new LinkedList<>();
+        for (RpgSystemCommand cmd : registry.getSystems())
         {
-            settingsRepository.initSystem(guildId, cmd.getCommandDesc());
+            descriptors.add(cmd.getCommandDesc());
         }
+        settingsRepository.initSystems(guildId, descriptors);
         CommandsHelper.updateGuild(event.getApi(), settingsRepository, guildId);
 //        List<ServerSlashCommandPermissionsBuilder> listaUpdate = new LinkedList<>();
 //        SlashCommandPermissionsUpdater scu = new SlashCommandPermissionsUpdater(event.getServer());
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.settings;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import net.unknowndomain.alea.utils.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores each guild in its own file, JSON or binary.
+ *
+ * With the binary format, the JSON files left by a previous run are
+ * converted when the store is opened.
+ *
+ * @author journeyman
+ */
+public class FileSettingsStore implements SettingsStore
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSettingsStore.class);
+    private static final String JSON_EXTENSION = ".json";
+    private static final String BINARY_EXTENSION = ".bin";
+    private static final int LOAD_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private final Path guildDir;
+    private final Gson gsonSerializer;
+    private final GuildSettingsCodec codec;
+    private final String extension;
+    /**
+     * Writes the guild files of a batch concurrently in the virtual thread
+     * mode; null otherwise, the batch then goes to the common pool.
+     */
+    private final ExecutorService writers;
+
+    public FileSettingsStore(Path settingsDir, SettingsFormat format, Gson gsonSerializer) throws IOException
+    {
+        this(settingsDir, format, gsonSerializer, true);
+    }
+
+    private FileSettingsStore(Path settingsDir, SettingsFormat format, Gson gsonSerializer, boolean migrate) throws IOException
+    {
+        this.guildDir = settingsDir.resolve(GuildSettings.PREFIX);
+        this.gsonSerializer = gsonSerializer;
+        if (!Files.exists(guildDir))
+        {
+            Files.createDirectories(guildDir);
+        }
+        if (format == SettingsFormat.BINARY)
+        {
+            codec = new GuildSettingsCodec(settingsDir.resolve(GuildSettingsCodec.SYSTEMS_FILE));
+            extension = BINARY_EXTENSION;
+            if (migrate)
+            {
+                migrateJsonFiles();
+            }
+        }
+        else
+        {
+            codec = null;
+            extension = JSON_EXTENSION;
+        }
+        writers = VirtualThreads.isEnabled() ? VirtualThreads.newPerTaskExecutor() : null;
+    }
+
+    /**
+     * Loads the guild files of both formats, for the stores importing them.
+     *
+     * The files are left untouched. A guild found in both formats keeps the
+     * JSON copy: opening the binary format converts every JSON file, so the
+     * JSON files left alongside can only be newer.
+     *
+     * @param settingsDir the settings directory
+     * @param gsonSerializer the JSON serializer
+     * @return the guild settings by guild id
+     * @throws IOException if the files cannot be read
+     */
+    static Map<Long, GuildSettings> loadForImport(Path settingsDir, Gson gsonSerializer) throws IOException
+    {
+        Map<Long, GuildSettings> retVal = new HashMap<>();
+        try (FileSettingsStore binary = new FileSettingsStore(settingsDir, SettingsFormat.BINARY, gsonSerializer, false))
+        {
+            retVal.putAll(binary.loadAll());
+        }
+        try (FileSettingsStore json = new FileSettingsStore(settingsDir, SettingsFormat.JSON, gsonSerializer, false))
+        {
+            retVal.putAll(json.loadAll());
+        }
+        return retVal;
+    }
+
+    private List<Path> listGuildFiles(String ext) throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(guildDir, "*" + ext))
+        {
+            for (Path singleGuild : dir)
+            {
+                files.add(singleGuild);
+            }
+        }
+        return files;
+    }
+
+    private static Long parseGuildId(Path singleGuild, String ext)
+    {
+        String guildName = singleGuild.getFileName().toString();
+        return Long.parseLong(guildName.substring(0, guildName.length() - ext.length()));
+    }
+
+    private Path guildPath(long guildId)
+    {
+        return guildDir.resolve(guildId + extension);
+    }
+
+    /**
+     * Converts the JSON guild files left by a previous run to the binary
+     * format, deleting the originals once converted.
+     */
+    private void migrateJsonFiles() throws IOException
+    {
+        List<Path> files = listGuildFiles(JSON_EXTENSION);
+        if (files.isEmpty())
+        {
+            return;
+        }
+        LongAdder converted = new LongAdder();
+        files.parallelStream().forEach(jsonFile -> {
+            try
+            {
+                GuildSettings settings;
+                try (Reader reader = Files.newBufferedReader(jsonFile, StandardCharsets.UTF_8))
+                {
+                    settings = gsonSerializer.fromJson(reader, GuildSettings.class);
+                }
+                if (settings != null)
+                {
+                    Files.write(guildPath(parseGuildId(jsonFile, JSON_EXTENSION)), codec.encode(settings), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                }
+                Files.delete(jsonFile);
+                converted.increment();
+            }
+            catch (NumberFormatException | IOException | JsonParseException ex)
+            {
+                LOGGER.error("Unable to convert " + jsonFile, ex);
+            }
+        });
+        LOGGER.info("Converted {} guild settings from JSON to binary", converted.sum());
+    }
+
+    private GuildSettings readGuildFile(Path singleGuild, LongAdder openTime, LongAdder parseTime) throws IOException
+    {
+        long start = System.nanoTime();
+        long opened;
+        GuildSettings settings;
+        if (codec != null)
+        {
+            byte [] data = Files.readAllBytes(singleGuild);
+            opened = System.nanoTime();
+            settings = codec.decode(data);
+        }
+        else
+        {
+            try (Reader reader = Files.newBufferedReader(singleGuild, StandardCharsets.UTF_8))
+            {
+                opened = System.nanoTime();
+                settings = gsonSerializer.fromJson(reader, GuildSettings.class);
+            }
+        }
+        if (openTime != null)
+        {
+            openTime.add(opened - start);
+            parseTime.add(System.nanoTime() - opened);
+        }
+        return settings;
+    }
+
+    @Override
+    public Map<Long, GuildSettings> loadAll() throws IOException
+    {
+        long start = System.nanoTime();
+        List<Path> files = listGuildFiles(extension);
+        long listTime = System.nanoTime() - start;
+        Map<Long, GuildSettings> retVal = new ConcurrentHashMap<>();
+        LongAdder openTime = new LongAdder();
+        LongAdder parseTime = new LongAdder();
+        int threads = Math.max(1, Math.min(LOAD_THREADS, files.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, VirtualThreads.threadFactory("settings-loader"));
+        try
+        {
+            List<Callable<Void>> tasks = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++)
+            {
+                final int offset = i;
+                tasks.add(() -> {
+                    for (int idx = offset; idx < files.size(); idx += threads)
+                    {
+                        loadGuild(files.get(idx), retVal, openTime, parseTime);
+                    }
+                    return null;
+                });
+            }
+            pool.invokeAll(tasks);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        LOGGER.info(
+                "Loaded {} guild settings in {} ms: list {} ms, open {} ms, read+parse {} ms (cumulative over {} threads)",
+                retVal.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                TimeUnit.NANOSECONDS.toMillis(listTime),
+                TimeUnit.NANOSECONDS.toMillis(openTime.sum()),
+                TimeUnit.NANOSECONDS.toMillis(parseTime.sum()),
+                threads
+        );
+        return retVal;
+    }
+
+    private void loadGuild(Path singleGuild, Map<Long, GuildSettings> target, LongAdder openTime, LongAdder parseTime)
+    {
+        try
+        {
+            Long guildId = parseGuildId(singleGuild, extension);
+            GuildSettings settings = readGuildFile(singleGuild, openTime, parseTime);
+            if (settings != null)
+            {
+                target.put(guildId, settings);
+            }
+        }
+        catch (NumberFormatException | IOException | JsonParseException ex)
+        {
+            LOGGER.error("Unable to load " + singleGuild, ex);
+        }
+    }
+
+    @Override
+    public boolean isRandomAccess()
+    {
+        return true;
+    }
+
+    @Override
+    public GuildSettings load(long guildId) throws IOException
+    {
+        Path guildPath = guildPath(guildId);
+        if (!Files.exists(guildPath))
+        {
+            return null;
+        }
+        try
+        {
+            return readGuildFile(guildPath, null, null);
+        }
+        catch (JsonParseException ex)
+        {
+            throw new IOException("Unable to load " + guildPath, ex);
+        }
+    }
+
+    @Override
+    public Set<Long> listGuilds() throws IOException
+    {
+        Set<Long> retVal = new HashSet<>();
+        for (Path singleGuild : listGuildFiles(extension))
+        {
+            try
+            {
+                retVal.add(parseGuildId(singleGuild, extension));
+            }
+            catch (NumberFormatException ex)
+            {
+                LOGGER.warn("Ignoring {}", singleGuild);
+            }
+        }
+        return retVal;
+    }
+
+    @Override
+    public void write(List<Map.Entry<Long, GuildSettings>> batch) throws IOException
+    {
+        LongAdder failures = new LongAdder();
+        if (writers != null)
+        {
+            List<Callable<Void>> tasks = new ArrayList<>(batch.size());
+            for (Map.Entry<Long, GuildSettings> entry : batch)
+            {
+                tasks.add(() -> {
+                    writeEntry(entry, failures);
+                    return null;
+                });
+            }
+            try
+            {
+                writers.invokeAll(tasks);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+        }
+        else
+        {
+            batch.parallelStream().forEach(entry -> writeEntry(entry, failures));
+        }
+        if (failures.sum() > 0)
+        {
+            throw new IOException("Unable to write " + failures.sum() + " guild settings");
+        }
+    }
+
+    private void writeEntry(Map.Entry<Long, GuildSettings> entry, LongAdder failures)
+    {
+        try
+        {
+            writeGuildSettings(entry.getKey(), entry.getValue());
+        }
+        catch (IOException ex)
+        {
+            LOGGER.error(null, ex);
+            failures.increment();
+        }
+    }
+
+    private void writeGuildSettings(long guildId, GuildSettings settings) throws IOException
+    {
+        Path guildPath = guildPath(guildId);
+        if (settings != null)
+        {
+            byte [] data = (codec != null) ? codec.encode(settings) : gsonSerializer.toJson(settings).getBytes(StandardCharsets.UTF_8);
+            Files.write(guildPath, data, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+        else
+        {
+            Files.deleteIfExists(guildPath);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (writers != null)
+        {
+            writers.shutdown();
+        }
+    }
+
+}
@@ -19,6 +19,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.util.Locale;
 import java.util.Optional;
+import net.unknowndomain.alea.bot.CommandRegistry;
 import net.unknowndomain.alea.command.Command;
 import net.unknowndomain.alea.messages.MsgBuilder;
 import net.unknowndomain.alea.messages.MsgStyle;
@@ -87,10 +88,12 @@ public class GuildConfigCommand extends Command
         CMD_OPTIONS.addOptionGroup(group);
     }
     
+    private final CommandRegistry registry;
     private final SettingsRepository settingsRepo;
     
-    public GuildConfigCommand(SettingsRepository settingsRepo)
+    public GuildConfigCommand(CommandRegistry registry, SettingsRepository settingsRepo)
     {
+        this.registry = registry;
         this.settingsRepo = settingsRepo;
     }
     
@@ -101,7 +104,7 @@ public class GuildConfigCommand extends Command
         return "guild\\-config";
     }
 
-    public ReturnMsg execCommand(String cmdLine, DiscordApi api, Long guildId)
+    public ReturnMsg execCommand(String cmdLine, DiscordApi api, long guildId)
     {
         MsgBuilder builder = new MsgBuilder();
         try
@@ -135,26 +138,43 @@ public class GuildConfigCommand extends Command
         catch (ParseException ex)
         {
             LOGGER.trace(null, ex);
-            HelpFormatter formatter = new HelpFormatter();
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            final PrintWriter writer = new PrintWriter(bos);
-            formatter.printHelp(writer, 80, "guild-config", null, CMD_OPTIONS, 1, 3, null, true);
-//            formatter.printUsage(writer,80,"guild-config", CMD_OPTIONS);
-            writer.flush();
-            builder.append(new String(bos.toByteArray()), MsgStyle.CODE);
+            return registry.getHelp("guild-config", Locale.ROOT, true, GuildConfigCommand::renderHelp);
         }
         return builder.build();
     }
     
-    public ReturnMsg enableSystem(DiscordApi api, Long guildId, String system)
+    private static ReturnMsg renderHelp()
     {
+        HelpFormatter formatter = new HelpFormatter();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final PrintWriter writer = new PrintWriter(bos);
+        formatter.printHelp(writer, 80, "guild-config", null, CMD_OPTIONS, 1, 3, null, true);
+//        formatter.printUsage(writer,80,"guild-config", CMD_OPTIONS);
+        writer.flush();
+        return new MsgBuilder().append(new String(bos.toByteArray()), MsgStyle.CODE).build();
+    }
+    
+    private static ReturnMsg unknownSystem(String system)
+    {
+        MsgBuilder builder = new MsgBuilder();
+        builder.append("Unknown system: ");
+        builder.append(system, MsgStyle.BOLD);
+        return builder.build();
+    }
+    
+    public ReturnMsg enableSystem(DiscordApi api, long guildId, String system)
+    {
+        if (!registry.getSystem(system).isPresent())
+        {
+            return unknownSystem(system);
+        }
         MsgBuilder builder = new MsgBuilder();
         Optional<GuildSettings> settings = settingsRepo.loadGuildSettings(guildId);
         if (settings.isPresent())
         {
             GuildSettings gs = settings.get();
-            SystemSettings ss = gs.getSystems().get(system);
-            CommandsHelper.updateSystemCommand(settingsRepo, api, guildId, system);
+            SystemSettings ss = gs.getSystem(system);
+            CommandsHelper.updateSystemCommand(registry, settingsRepo, api, guildId, system);
             builder.append("System: ");
             builder.append(system, MsgStyle.BOLD);
             builder.append(" => ");
@@ -163,21 +183,23 @@ public class GuildConfigCommand extends Command
         return builder.build();
     }
     
-    public ReturnMsg disableSystem(DiscordApi api, Long guildId, String system)
+    public ReturnMsg disableSystem(DiscordApi api, long guildId, String system)
     {
+        if (!registry.getSystem(system).isPresent())
+        {
+            return unknownSystem(system);
+        }
         MsgBuilder builder = new MsgBuilder();
         Optional<GuildSettings> settings = settingsRepo.loadGuildSettings(guildId);
         if (settings.isPresent())
         {
             GuildSettings gs = settings.get();
-            SystemSettings ss = gs.getSystems().get(system);
-            ss.setEnabled(false);
-            if (ss.getCommandId() != null)
+            SystemSettings ss = gs.getSystem(system);
+            if ((ss != null) && (ss.getCommandId() != null))
             {
                 CommandsHelper.deleteCommands(api, guildId, ss.getCommandId());
-                ss.setCommandId(null);
             }
-            settingsRepo.storeGuildSettings(guildId, gs);
+            settingsRepo.updateGuildSettings(guildId, current -> current.withSystem(system, new SystemSettings(false, null)));
             builder.append("System: ");
             builder.append(system, MsgStyle.BOLD);
             builder.append(" => ");
@@ -186,7 +208,7 @@ public class GuildConfigCommand extends Command
         return builder.build();
     }
     
-    public ReturnMsg getLanguage(Long guildId)
+    public ReturnMsg getLanguage(long guildId)
     {
         MsgBuilder builder = new MsgBuilder();
         Optional<GuildSettings> settings = settingsRepo.loadGuildSettings(guildId);
@@ -198,7 +220,7 @@ public class GuildConfigCommand extends Command
         return builder.build();
     }
     
-    public ReturnMsg setLanguage(Long guildId, Locale lang)
+    public ReturnMsg setLanguage(long guildId, Locale lang)
     {
         MsgBuilder builder = new MsgBuilder();
         Optional<GuildSettings> settings = settingsRepo.loadGuildSettings(guildId);
@@ -207,8 +229,7 @@ public class GuildConfigCommand extends Command
             GuildSettings gs = settings.get();
             builder.append("Guild Language: ");
             builder.append(gs.getLanguage().toLanguageTag(), MsgStyle.BOLD);
-            gs.setLanguage(lang);
-            settingsRepo.storeGuildSettings(guildId, gs);
+            gs = settingsRepo.updateGuildSettings(guildId, current -> current.withLanguage(lang));
             builder.append(" => ");
             builder.append(gs.getLanguage().toLanguageTag(), MsgStyle.BOLD);
         }
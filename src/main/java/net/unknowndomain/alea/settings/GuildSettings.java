@@ -1,5 +1,5 @@
 /*
- * Copyright 2021 Marco Bignami.
+ * Copyright 2020 Marco Bignami.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,39 +15,210 @@
  */
 package net.unknowndomain.alea.settings;
 
+import com.google.gson.annotations.JsonAdapter;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
 /**
+ * Settings of a single guild.
+ *
+ * Instances are never modified once published: the <code>with*</code>
+ * methods return an updated copy, so they can be shared between threads
+ * without locking.
+ *
+ * The systems are addressed by their {@link SystemIndex} ordinal: the
+ * configured and the enabled systems are two bitsets, and the few command
+ * ids are kept in a sparse table sorted by ordinal. The JSON form is still a
+ * map by system id, see {@link GuildSettingsAdapter}.
  *
  * @author journeyman
  */
+@JsonAdapter(GuildSettingsAdapter.class)
 public class GuildSettings
 {
     public static final String PREFIX = "guilds";
-    
-    private Locale language = Locale.ENGLISH;
-    private Map<String, SystemSettings> systems = new HashMap<>();
+    private static final long [] NO_BITS = new long[0];
+    private static final int [] NO_ORDINALS = new int[0];
+
+    private final Locale language;
+    private final long [] configured;
+    private final long [] enabled;
+    private final int [] commandOrdinals;
+    private final long [] commandIds;
+
+    public GuildSettings()
+    {
+        this(Locale.ENGLISH, NO_BITS, NO_BITS, NO_ORDINALS, NO_BITS);
+    }
+
+    public GuildSettings(Locale language, Map<String, SystemSettings> systems)
+    {
+        this(language, NO_BITS, NO_BITS, NO_ORDINALS, NO_BITS, systems);
+    }
+
+    private GuildSettings(Locale language, long [] configured, long [] enabled, int [] commandOrdinals, long [] commandIds)
+    {
+        this.language = language;
+        this.configured = configured;
+        this.enabled = enabled;
+        this.commandOrdinals = commandOrdinals;
+        this.commandIds = commandIds;
+    }
+
+    private GuildSettings(Locale language, long [] baseConfigured, long [] baseEnabled, int [] baseOrdinals, long [] baseIds, Map<String, SystemSettings> systems)
+    {
+        int words = baseConfigured.length;
+        int [] ordinals = new int[systems.size()];
+        int idx = 0;
+        for (String system : systems.keySet())
+        {
+            ordinals[idx] = SystemIndex.ordinal(system);
+            words = Math.max(words, (ordinals[idx] >> 6) + 1);
+            idx++;
+        }
+        long [] newConfigured = Arrays.copyOf(baseConfigured, words);
+        long [] newEnabled = Arrays.copyOf(baseEnabled, words);
+        Map<Integer, Long> ids = new HashMap<>();
+        for (int i = 0; i < baseOrdinals.length; i++)
+        {
+            ids.put(baseOrdinals[i], baseIds[i]);
+        }
+        idx = 0;
+        for (SystemSettings settings : systems.values())
+        {
+            int ordinal = ordinals[idx++];
+            long bit = 1L << ordinal;
+            newConfigured[ordinal >> 6] |= bit;
+            if ((settings == null) || settings.isEnabled())
+            {
+                newEnabled[ordinal >> 6] |= bit;
+            }
+            else
+            {
+                newEnabled[ordinal >> 6] &= ~bit;
+            }
+            if ((settings != null) && (settings.getCommandId() != null))
+            {
+                ids.put(ordinal, settings.getCommandId());
+            }
+            else
+            {
+                ids.remove(ordinal);
+            }
+        }
+        this.language = language;
+        this.configured = newConfigured;
+        this.enabled = newEnabled;
+        if (ids.isEmpty())
+        {
+            this.commandOrdinals = NO_ORDINALS;
+            this.commandIds = NO_BITS;
+        }
+        else
+        {
+            this.commandOrdinals = new int[ids.size()];
+            idx = 0;
+            for (Integer ordinal : ids.keySet())
+            {
+                commandOrdinals[idx++] = ordinal;
+            }
+            Arrays.sort(commandOrdinals);
+            this.commandIds = new long[commandOrdinals.length];
+            for (int i = 0; i < commandOrdinals.length; i++)
+            {
+                commandIds[i] = ids.get(commandOrdinals[i]);
+            }
+        }
+    }
 
     public Locale getLanguage()
     {
         return language;
     }
 
-    public void setLanguage(Locale language)
+    public GuildSettings withLanguage(Locale language)
     {
-        this.language = language;
+        return new GuildSettings(language, configured, enabled, commandOrdinals, commandIds);
     }
 
+    private static boolean testBit(long [] bits, int ordinal)
+    {
+        int word = ordinal >> 6;
+        return (word < bits.length) && ((bits[word] & (1L << ordinal)) != 0);
+    }
+
+    /**
+     * Checks whether a system is configured for this guild.
+     *
+     * @param ordinal the {@link SystemIndex} ordinal of the system
+     * @return true if configured
+     */
+    public boolean hasSystem(int ordinal)
+    {
+        return testBit(configured, ordinal);
+    }
+
+    /**
+     * Checks whether a system is enabled for this guild.
+     *
+     * @param ordinal the {@link SystemIndex} ordinal of the system
+     * @return true if configured and enabled
+     */
+    public boolean isSystemEnabled(int ordinal)
+    {
+        return testBit(enabled, ordinal);
+    }
+
+    /**
+     * Gets the settings of a single system.
+     *
+     * @param system the system id
+     * @return the settings, or null if the system is not configured
+     */
+    public SystemSettings getSystem(String system)
+    {
+        int ordinal = SystemIndex.find(system);
+        if ((ordinal < 0) || !hasSystem(ordinal))
+        {
+            return null;
+        }
+        int idx = Arrays.binarySearch(commandOrdinals, ordinal);
+        return new SystemSettings(isSystemEnabled(ordinal), (idx >= 0) ? commandIds[idx] : null);
+    }
+
+    /**
+     * Builds a map view of the configured systems.
+     *
+     * @return the settings by system id
+     */
     public Map<String, SystemSettings> getSystems()
     {
-        return systems;
+        Map<String, SystemSettings> retVal = new HashMap<>();
+        for (int word = 0; word < configured.length; word++)
+        {
+            long bits = configured[word];
+            while (bits != 0)
+            {
+                int ordinal = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int idx = Arrays.binarySearch(commandOrdinals, ordinal);
+                retVal.put(SystemIndex.name(ordinal), new SystemSettings(isSystemEnabled(ordinal), (idx >= 0) ? commandIds[idx] : null));
+            }
+        }
+        return Collections.unmodifiableMap(retVal);
     }
 
-    public void setSystems(Map<String, SystemSettings> systems)
+    public GuildSettings withSystem(String system, SystemSettings settings)
     {
-        this.systems = systems;
+        return withSystems(Collections.singletonMap(system, settings));
     }
-    
+
+    public GuildSettings withSystems(Map<String, SystemSettings> settings)
+    {
+        return new GuildSettings(language, configured, enabled, commandOrdinals, commandIds, settings);
+    }
+
 }
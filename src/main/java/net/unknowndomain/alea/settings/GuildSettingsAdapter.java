@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.settings;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps the JSON form of the {@link GuildSettings} as it was before the
+ * bitset representation: a language and a map of systems by id.
+ *
+ * @author journeyman
+ */
+class GuildSettingsAdapter implements TypeAdapterFactory
+{
+    private static final String LANGUAGE = "language";
+    private static final String SYSTEMS = "systems";
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type)
+    {
+        if (!GuildSettings.class.equals(type.getRawType()))
+        {
+            return null;
+        }
+        TypeAdapter<Locale> localeAdapter = gson.getAdapter(Locale.class);
+        TypeAdapter<SystemSettings> systemAdapter = gson.getAdapter(SystemSettings.class);
+        TypeAdapter<GuildSettings> adapter = new TypeAdapter<GuildSettings>()
+        {
+            @Override
+            public void write(JsonWriter out, GuildSettings settings) throws IOException
+            {
+                out.beginObject();
+                out.name(LANGUAGE);
+                localeAdapter.write(out, settings.getLanguage());
+                out.name(SYSTEMS);
+                out.beginObject();
+                for (Map.Entry<String, SystemSettings> entry : settings.getSystems().entrySet())
+                {
+                    out.name(entry.getKey());
+                    systemAdapter.write(out, entry.getValue());
+                }
+                out.endObject();
+                out.endObject();
+            }
+
+            @Override
+            public GuildSettings read(JsonReader in) throws IOException
+            {
+                Locale language = Locale.ENGLISH;
+                Map<String, SystemSettings> systems = new HashMap<>();
+                in.beginObject();
+                while (in.hasNext())
+                {
+                    String name = in.nextName();
+                    if (LANGUAGE.equals(name))
+                    {
+                        language = localeAdapter.read(in);
+                    }
+                    else if (SYSTEMS.equals(name) && (in.peek() == JsonToken.BEGIN_OBJECT))
+                    {
+                        in.beginObject();
+                        while (in.hasNext())
+                        {
+                            String system = in.nextName();
+                            systems.put(system, systemAdapter.read(in));
+                        }
+                        in.endObject();
+                    }
+                    else
+                    {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+                return new GuildSettings(language, systems);
+            }
+        };
+        return (TypeAdapter<T>) adapter.nullSafe();
+    }
+
+}
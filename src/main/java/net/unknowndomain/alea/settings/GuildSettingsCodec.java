@@ -0,0 +1,234 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.settings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compact binary encoding of the {@link GuildSettings}.
+ *
+ * The system names are stored only once, in a table shared by every guild
+ * and persisted in <code>systems.idx</code>; a guild refers to the systems by
+ * their position in the table. The layout of a guild is:
+ * <ul>
+ * <li>the format version, one byte;</li>
+ * <li>the language tag, as varint length and UTF-8 bytes;</li>
+ * <li>the bitset size, as varint, followed by the bitset of the configured
+ * systems and by the bitset of the enabled ones;</li>
+ * <li>the number of command ids, as varint, followed by the system position
+ * and the command id of each one, both as varints.</li>
+ * </ul>
+ *
+ * The table only grows: new systems are appended and synced before any guild
+ * referring to them is written.
+ *
+ * @author journeyman
+ */
+class GuildSettingsCodec
+{
+    public static final String SYSTEMS_FILE = "systems.idx";
+    private static final byte VERSION = 1;
+
+    private final Path tablePath;
+    private final List<String> systemNames = new ArrayList<>();
+    private final ReentrantLock tableLock = new ReentrantLock();
+    private final Map<String, Integer> systemIndex = new HashMap<>();
+    private volatile List<String> systemsView = Collections.emptyList();
+
+    GuildSettingsCodec(Path tablePath) throws IOException
+    {
+        this.tablePath = tablePath;
+        if (Files.exists(tablePath))
+        {
+            for (String name : Files.readAllLines(tablePath, StandardCharsets.UTF_8))
+            {
+                if (!name.isEmpty())
+                {
+                    systemIndex.put(name, systemNames.size());
+                    systemNames.add(name);
+                }
+            }
+            systemsView = Collections.unmodifiableList(new ArrayList<>(systemNames));
+        }
+    }
+
+    private int ordinal(String system) throws IOException
+    {
+        // not a monitor: the synced append would pin a virtual carrier thread
+        tableLock.lock();
+        try
+        {
+            Integer idx = systemIndex.get(system);
+            if (idx == null)
+            {
+                Files.write(tablePath, (system + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+                idx = systemNames.size();
+                systemIndex.put(system, idx);
+                systemNames.add(system);
+                systemsView = Collections.unmodifiableList(new ArrayList<>(systemNames));
+            }
+            return idx;
+        }
+        finally
+        {
+            tableLock.unlock();
+        }
+    }
+
+    byte [] encode(GuildSettings settings) throws IOException
+    {
+        Map<String, SystemSettings> systems = settings.getSystems();
+        int [] ordinals = new int[systems.size()];
+        SystemSettings [] values = new SystemSettings[systems.size()];
+        int size = 0;
+        int count = 0;
+        int commands = 0;
+        for (Map.Entry<String, SystemSettings> entry : systems.entrySet())
+        {
+            ordinals[count] = ordinal(entry.getKey());
+            values[count] = entry.getValue();
+            size = Math.max(size, ordinals[count] + 1);
+            if ((values[count] != null) && (values[count].getCommandId() != null))
+            {
+                commands++;
+            }
+            count++;
+        }
+        byte [] present = new byte[(size + 7) / 8];
+        byte [] enabled = new byte[present.length];
+        for (int i = 0; i < count; i++)
+        {
+            present[ordinals[i] >> 3] |= 1 << (ordinals[i] & 7);
+            if ((values[i] != null) && values[i].isEnabled())
+            {
+                enabled[ordinals[i] >> 3] |= 1 << (ordinals[i] & 7);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + present.length * 2 + commands * 10);
+        out.write(VERSION);
+        byte [] language = (settings.getLanguage() != null) ? settings.getLanguage().toLanguageTag().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        writeVarLong(out, language.length);
+        out.write(language, 0, language.length);
+        writeVarLong(out, size);
+        out.write(present, 0, present.length);
+        out.write(enabled, 0, enabled.length);
+        writeVarLong(out, commands);
+        for (int i = 0; i < count; i++)
+        {
+            if ((values[i] != null) && (values[i].getCommandId() != null))
+            {
+                writeVarLong(out, ordinals[i]);
+                writeVarLong(out, values[i].getCommandId());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    GuildSettings decode(byte [] data) throws IOException
+    {
+        int [] pos = new int[1];
+        if ((data.length == 0) || (data[0] != VERSION))
+        {
+            throw new IOException("Unsupported guild settings format");
+        }
+        pos[0] = 1;
+        List<String> names = systemsView;
+        int langLength = (int) readVarLong(data, pos);
+        // same default as a JSON guild file without a language
+        Locale language = Locale.ENGLISH;
+        if (langLength > 0)
+        {
+            checkBounds(data, pos[0] + langLength);
+            language = Locale.forLanguageTag(new String(data, pos[0], langLength, StandardCharsets.UTF_8));
+            pos[0] += langLength;
+        }
+        int size = (int) readVarLong(data, pos);
+        int bytes = (size + 7) / 8;
+        checkBounds(data, pos[0] + bytes * 2);
+        int presentStart = pos[0];
+        int enabledStart = pos[0] + bytes;
+        pos[0] += bytes * 2;
+        Map<Integer, Long> commandIds = new HashMap<>();
+        long commands = readVarLong(data, pos);
+        for (long i = 0; i < commands; i++)
+        {
+            int idx = (int) readVarLong(data, pos);
+            commandIds.put(idx, readVarLong(data, pos));
+        }
+        Map<String, SystemSettings> systems = new HashMap<>();
+        for (int idx = 0; idx < size; idx++)
+        {
+            if ((data[presentStart + (idx >> 3)] & (1 << (idx & 7))) != 0)
+            {
+                if (idx >= names.size())
+                {
+                    throw new IOException("Unknown system index " + idx);
+                }
+                boolean enabled = (data[enabledStart + (idx >> 3)] & (1 << (idx & 7))) != 0;
+                systems.put(names.get(idx), new SystemSettings(enabled, commandIds.get(idx)));
+            }
+        }
+        GuildSettings retVal = new GuildSettings(language, systems);
+        return retVal;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(byte [] data, int [] pos) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            checkBounds(data, pos[0] + 1);
+            byte b = data[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void checkBounds(byte [] data, int end) throws IOException
+    {
+        if (end > data.length)
+        {
+            throw new IOException("Truncated guild settings");
+        }
+    }
+
+}
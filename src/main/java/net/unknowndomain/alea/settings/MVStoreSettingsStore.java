@@ -0,0 +1,209 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.settings;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.MVStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the guilds in a single H2 MVStore file, <code>settings.mv</code>.
+ *
+ * The guilds are kept in a B-tree map keyed by guild id, so single guilds can
+ * be loaded on demand; each batch of changes is applied with a single commit,
+ * so it is either stored as a whole or not at all. Until an import has been
+ * committed, the JSON and binary guild files of the {@link FileSettingsStore}
+ * are imported on every start.
+ *
+ * @author journeyman
+ */
+public class MVStoreSettingsStore implements SettingsStore
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(MVStoreSettingsStore.class);
+    private static final String STORE_FILE = "settings.mv";
+    private static final String META_MAP = "meta";
+    private static final String IMPORTED = "imported";
+
+    private final Gson gsonSerializer;
+    private final MVStore store;
+    private final MVMap<Long, String> guilds;
+    private final MVMap<String, String> meta;
+
+    public MVStoreSettingsStore(Path settingsDir, Gson gsonSerializer) throws IOException
+    {
+        this.gsonSerializer = gsonSerializer;
+        Path storePath = settingsDir.resolve(STORE_FILE);
+        try
+        {
+            store = new MVStore.Builder()
+                    .fileName(storePath.toString())
+                    .autoCommitDisabled()
+                    .open();
+            guilds = store.openMap(GuildSettings.PREFIX);
+            meta = store.openMap(META_MAP);
+        }
+        catch (MVStoreException ex)
+        {
+            throw new IOException("Unable to open " + storePath, ex);
+        }
+        if (meta.get(IMPORTED) == null)
+        {
+            try
+            {
+                importFiles(settingsDir);
+            }
+            catch (IOException ex)
+            {
+                store.close();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Imports the guild files, committing them together with the imported
+     * flag; if the import fails it is run again on the next start.
+     *
+     * Guilds already in the store are never overwritten by the files.
+     */
+    private void importFiles(Path settingsDir) throws IOException
+    {
+        Map<Long, GuildSettings> existing = FileSettingsStore.loadForImport(settingsDir, gsonSerializer);
+        int imported = 0;
+        try
+        {
+            for (Map.Entry<Long, GuildSettings> entry : existing.entrySet())
+            {
+                if (guilds.putIfAbsent(entry.getKey(), gsonSerializer.toJson(entry.getValue())) == null)
+                {
+                    imported++;
+                }
+            }
+            meta.put(IMPORTED, Boolean.TRUE.toString());
+            store.commit();
+        }
+        catch (MVStoreException ex)
+        {
+            store.rollback();
+            throw new IOException("Unable to import the guild settings into " + STORE_FILE, ex);
+        }
+        LOGGER.info("Imported {} guild settings into {}", imported, STORE_FILE);
+    }
+
+    private GuildSettings decode(long guildId, String data) throws IOException
+    {
+        try
+        {
+            return gsonSerializer.fromJson(data, GuildSettings.class);
+        }
+        catch (JsonParseException ex)
+        {
+            throw new IOException("Unable to load guild " + guildId, ex);
+        }
+    }
+
+    @Override
+    public Map<Long, GuildSettings> loadAll() throws IOException
+    {
+        long start = System.nanoTime();
+        Map<Long, GuildSettings> retVal = new HashMap<>();
+        for (Map.Entry<Long, String> entry : guilds.entrySet())
+        {
+            try
+            {
+                GuildSettings settings = decode(entry.getKey(), entry.getValue());
+                if (settings != null)
+                {
+                    retVal.put(entry.getKey(), settings);
+                }
+            }
+            catch (IOException ex)
+            {
+                LOGGER.error(null, ex);
+            }
+        }
+        LOGGER.info(
+                "Loaded {} guild settings from {} in {} ms",
+                retVal.size(),
+                STORE_FILE,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        );
+        return retVal;
+    }
+
+    @Override
+    public boolean isRandomAccess()
+    {
+        return true;
+    }
+
+    @Override
+    public GuildSettings load(long guildId) throws IOException
+    {
+        String data = guilds.get(guildId);
+        return (data != null) ? decode(guildId, data) : null;
+    }
+
+    @Override
+    public Set<Long> listGuilds()
+    {
+        return new HashSet<>(guilds.keySet());
+    }
+
+    @Override
+    public void write(List<Map.Entry<Long, GuildSettings>> batch) throws IOException
+    {
+        try
+        {
+            for (Map.Entry<Long, GuildSettings> entry : batch)
+            {
+                if (entry.getValue() != null)
+                {
+                    guilds.put(entry.getKey(), gsonSerializer.toJson(entry.getValue()));
+                }
+                else
+                {
+                    guilds.remove(entry.getKey());
+                }
+            }
+            store.commit();
+        }
+        catch (MVStoreException ex)
+        {
+            store.rollback();
+            throw new IOException(ex);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        store.close();
+    }
+
+}
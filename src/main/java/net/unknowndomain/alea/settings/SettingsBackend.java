@@ -0,0 +1,37 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.settings;
+
+/**
+ * Storage used for the guild settings.
+ *
+ * @author journeyman
+ */
+public enum SettingsBackend
+{
+    /**
+     * One file per guild, see {@link SettingsFormat}.
+     */
+    FILES,
+    /**
+     * Append-only log of changes, compacted into snapshots.
+     */
+    JOURNAL,
+    /**
+     * Embedded H2 MVStore database, in a single file.
+     */
+    MVSTORE;
+}
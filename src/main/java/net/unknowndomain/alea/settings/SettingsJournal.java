@@ -0,0 +1,359 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.settings;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only storage for the guild settings.
+ *
+ * Every change is appended as a JSON line to the current log segment; a
+ * batch of changes is written with a single append and a single sync. Once
+ * the log grows well beyond the live data, the whole state is compacted
+ * into a snapshot and the covered segments are deleted.
+ *
+ * On startup the latest snapshot is loaded and the following segments are
+ * replayed in order; a torn line, left by a crash or a failure while
+ * appending, is discarded. When the journal is still empty, the JSON and
+ * binary guild files of the {@link FileSettingsStore} are imported into the
+ * first snapshot.
+ *
+ * The records cannot be read one by one from disk, so the journal is not
+ * random access: the repository loads every guild at startup and keeps them
+ * in memory, the journal itself keeps nothing but the open segment.
+ *
+ * @author journeyman
+ */
+public class SettingsJournal implements SettingsStore
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettingsJournal.class);
+    private static final String PREFIX = "journal";
+    private static final String SEGMENT = "segment-";
+    private static final String SNAPSHOT = "snapshot-";
+    private static final String EXTENSION = ".log";
+    private static final long SEGMENT_SIZE = 8L * 1024 * 1024;
+    private static final long MIN_COMPACT_SIZE = 4L * 1024 * 1024;
+
+    private static class Record
+    {
+        private Long guild;
+        private GuildSettings settings;
+
+        Record(Long guild, GuildSettings settings)
+        {
+            this.guild = guild;
+            this.settings = settings;
+        }
+    }
+
+    private final Path settingsDir;
+    private final Path journalDir;
+    private final Gson gson;
+    private FileChannel segment;
+    private long segmentSeq;
+    private long logSize;
+    private long snapshotSize;
+
+    public SettingsJournal(Path settingsDir, Gson gson) throws IOException
+    {
+        this.settingsDir = settingsDir;
+        this.journalDir = settingsDir.resolve(PREFIX);
+        this.gson = gson;
+        if (!Files.exists(journalDir))
+        {
+            Files.createDirectories(journalDir);
+        }
+    }
+
+    @Override
+    public Map<Long, GuildSettings> loadAll() throws IOException
+    {
+        long start = System.nanoTime();
+        boolean empty = listFiles(SNAPSHOT).isEmpty() && listFiles(SEGMENT).isEmpty();
+        Map<Long, GuildSettings> state = replay();
+        if (empty)
+        {
+            // first start on the journal: import the existing guild files
+            state.putAll(FileSettingsStore.loadForImport(settingsDir, gson));
+            if (!state.isEmpty())
+            {
+                compact(state);
+            }
+        }
+        LOGGER.info(
+                "Replayed {} guild settings from the journal in {} ms",
+                state.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        );
+        return state;
+    }
+
+    @Override
+    public boolean isRandomAccess()
+    {
+        return false;
+    }
+
+    @Override
+    public GuildSettings load(long guildId)
+    {
+        throw new UnsupportedOperationException("The journal can only be loaded as a whole");
+    }
+
+    @Override
+    public Set<Long> listGuilds()
+    {
+        throw new UnsupportedOperationException("The journal can only be loaded as a whole");
+    }
+
+    /**
+     * Rebuilds the state from the latest snapshot and the log tail, then
+     * opens a new segment for the following appends.
+     *
+     * @return the guild settings by guild id
+     * @throws IOException if the journal cannot be read
+     */
+    private Map<Long, GuildSettings> replay() throws IOException
+    {
+        Map<Long, GuildSettings> state = new HashMap<>();
+        TreeMap<Long, Path> snapshots = listFiles(SNAPSHOT);
+        long firstSeq = 0;
+        if (!snapshots.isEmpty())
+        {
+            Map.Entry<Long, Path> latest = snapshots.lastEntry();
+            firstSeq = latest.getKey();
+            readFile(latest.getValue(), state);
+            snapshotSize = Files.size(latest.getValue());
+        }
+        long lastSeq = firstSeq;
+        logSize = 0;
+        for (Map.Entry<Long, Path> entry : listFiles(SEGMENT).tailMap(firstSeq, true).entrySet())
+        {
+            readFile(entry.getValue(), state);
+            logSize += Files.size(entry.getValue());
+            lastSeq = Math.max(lastSeq, entry.getKey());
+        }
+        openSegment(lastSeq + 1);
+        return state;
+    }
+
+    private void readFile(Path file, Map<Long, GuildSettings> state) throws IOException
+    {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                Record record;
+                try
+                {
+                    record = gson.fromJson(line, Record.class);
+                }
+                catch (JsonParseException ex)
+                {
+                    LOGGER.warn("Discarding a torn record in {}", file);
+                    continue;
+                }
+                if ((record == null) || (record.guild == null))
+                {
+                    continue;
+                }
+                if (record.settings != null)
+                {
+                    state.put(record.guild, record.settings);
+                }
+                else
+                {
+                    state.remove(record.guild);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a batch of changes and syncs it to disk.
+     *
+     * @param batch the changes, a null value removes the guild
+     * @throws IOException if the batch cannot be written
+     */
+    @Override
+    public void write(List<Map.Entry<Long, GuildSettings>> batch) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (Map.Entry<Long, GuildSettings> entry : batch)
+        {
+            buffer.write(gson.toJson(new Record(entry.getKey(), entry.getValue())).getBytes(StandardCharsets.UTF_8));
+            buffer.write('\n');
+        }
+        ByteBuffer data = ByteBuffer.wrap(buffer.toByteArray());
+        try
+        {
+            while (data.hasRemaining())
+            {
+                segment.write(data);
+            }
+            segment.force(false);
+        }
+        catch (IOException ex)
+        {
+            // never append after a torn line: the retry goes to a new segment
+            segment.close();
+            openSegment(segmentSeq + 1);
+            throw ex;
+        }
+        logSize += buffer.size();
+        if (segment.size() >= SEGMENT_SIZE)
+        {
+            segment.close();
+            openSegment(segmentSeq + 1);
+        }
+    }
+
+    /**
+     * Compacts the journal once the log is more than twice the last
+     * snapshot.
+     */
+    @Override
+    public void checkpoint(Map<Long, GuildSettings> state) throws IOException
+    {
+        if (logSize > Math.max(MIN_COMPACT_SIZE, snapshotSize * 2))
+        {
+            compact(state);
+        }
+    }
+
+    /**
+     * Writes the whole state into a new snapshot and deletes the data it
+     * covers.
+     *
+     * The state may include changes not appended yet: they will be appended
+     * to the new segment anyway, and replaying them twice is harmless.
+     *
+     * @param state the current guild settings
+     * @throws IOException if the snapshot cannot be written
+     */
+    private void compact(Map<Long, GuildSettings> state) throws IOException
+    {
+        segment.close();
+        long snapshotSeq = segmentSeq + 1;
+        openSegment(snapshotSeq);
+        Path target = journalDir.resolve(SNAPSHOT + snapshotSeq + EXTENSION);
+        Path temp = journalDir.resolve(SNAPSHOT + snapshotSeq + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<Long, GuildSettings> entry : state.entrySet())
+            {
+                sb.append(gson.toJson(new Record(entry.getKey(), entry.getValue()))).append('\n');
+                if (sb.length() > 64 * 1024)
+                {
+                    writeFully(out, sb);
+                }
+            }
+            writeFully(out, sb);
+            out.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // the rename must be durable before the data it replaces is deleted
+        syncDirectory();
+        snapshotSize = Files.size(target);
+        logSize = 0;
+        for (Map.Entry<Long, Path> old : listFiles(SNAPSHOT).headMap(snapshotSeq).entrySet())
+        {
+            Files.deleteIfExists(old.getValue());
+        }
+        for (Map.Entry<Long, Path> old : listFiles(SEGMENT).headMap(snapshotSeq).entrySet())
+        {
+            Files.deleteIfExists(old.getValue());
+        }
+        LOGGER.info("Compacted {} guild settings into {}", state.size(), target.getFileName());
+    }
+
+    private static void writeFully(FileChannel out, StringBuilder sb) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        while (data.hasRemaining())
+        {
+            out.write(data);
+        }
+        sb.setLength(0);
+    }
+
+    private void syncDirectory() throws IOException
+    {
+        try (FileChannel dir = FileChannel.open(journalDir, StandardOpenOption.READ))
+        {
+            dir.force(true);
+        }
+    }
+
+    private void openSegment(long seq) throws IOException
+    {
+        segmentSeq = seq;
+        segment = FileChannel.open(journalDir.resolve(SEGMENT + seq + EXTENSION), StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+    }
+
+    private TreeMap<Long, Path> listFiles(String prefix) throws IOException
+    {
+        TreeMap<Long, Path> retVal = new TreeMap<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(journalDir, prefix + "*" + EXTENSION))
+        {
+            for (Path file : dir)
+            {
+                String name = file.getFileName().toString();
+                try
+                {
+                    retVal.put(Long.parseLong(name.substring(prefix.length(), name.length() - EXTENSION.length())), file);
+                }
+                catch (NumberFormatException ex)
+                {
+                    LOGGER.warn("Ignoring {}", file);
+                }
+            }
+        }
+        return retVal;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (segment != null)
+        {
+            segment.close();
+        }
+    }
+
+}
@@ -16,144 +16,644 @@
 package net.unknowndomain.alea.settings;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
 import net.unknowndomain.alea.systems.RpgSystemDescriptor;
+import net.unknowndomain.alea.utils.ConcurrentLongMap;
+import net.unknowndomain.alea.utils.VirtualThreads;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Repository of the guild settings.
+ * 
+ * Reads never lock: the repository maps each guild to an immutable
+ * {@link GuildSettings} snapshot, and writers publish a new snapshot
+ * atomically before persisting it.
+ * 
+ * Persistence is write-behind: updated guilds are queued with their latest
+ * snapshot, and a background thread flushes them in batches every
+ * <code>flushInterval</code> milliseconds, writing each guild once no matter
+ * how many times it changed in the meantime. A non positive interval
+ * restores the write-through behaviour.
+ * 
+ * Guilds without stored settings share a single immutable default, with
+ * every installed system enabled; nothing is stored for them until their
+ * settings are actually changed.
+ * 
+ * By default every guild is loaded at startup and kept in memory; with a
+ * positive <code>cacheSize</code> the guilds are instead loaded on first
+ * access into a bounded cache, and evicted when idle.
+ * 
+ * The settings are persisted by a {@link SettingsStore}, chosen with
+ * {@link SettingsBackend}; stores that cannot load single guilds always keep
+ * every guild in memory.
  *
  * @author journeyman
  */
-public class SettingsRepository
+public class SettingsRepository implements Closeable
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(SettingsRepository.class);
+    private static final String COMMANDS_FILE = "commands.json";
+    private static final int WRITE_LOCKS = 64;
+    /**
+     * Marks a guild without settings, both in the lazy cache and in the
+     * pending writes; it is never returned to the callers.
+     */
+    private static final GuildSettings ABSENT = new GuildSettings();
+    public static final long DEFAULT_FLUSH_INTERVAL = 5000L;
+    public static final long DEFAULT_CACHE_IDLE = 60L;
     
     private final Path settingsDir;
     private final Gson gsonSerializer = new Gson();
     
-    private Map<Long, GuildSettings> guildsRepo;
+    private final ReentrantLock fileLock = new ReentrantLock();
+    private final ReentrantLock [] writeLocks = new ReentrantLock[WRITE_LOCKS];
+    
+    private final ConcurrentLongMap<GuildSettings> guildsRepo;
+    private final Cache<Long, GuildSettings> guildsCache;
+    private final ConcurrentLongMap<GuildSettings> pendingWrites = new ConcurrentLongMap<>();
+    private final long flushInterval;
+    private final ScheduledExecutorService flusher;
+    private final SettingsStore store;
+    private volatile Collection<RpgSystemDescriptor> defaultSystems = Collections.emptyList();
+    private volatile GuildSettings defaultSettings = new GuildSettings();
     
     public SettingsRepository(String settingsDir) throws IOException
     {
-        this(Paths.get(settingsDir));
+        this(Paths.get(settingsDir), SettingsBackend.FILES, SettingsFormat.JSON, DEFAULT_FLUSH_INTERVAL, 0L, DEFAULT_CACHE_IDLE);
+    }
+    
+    public SettingsRepository(String settingsDir, SettingsBackend backend, SettingsFormat format, long flushInterval, long cacheSize, long cacheIdle) throws IOException
+    {
+        this(Paths.get(settingsDir), backend, format, flushInterval, cacheSize, cacheIdle);
+    }
+    
+    /**
+     * Opens the repository on the given backend.
+     * 
+     * @param settingsDir the settings directory
+     * @param backend the storage of the guild settings
+     * @param format the encoding of the guild files, used by {@link SettingsBackend#FILES}
+     * @param flushInterval the write-behind interval in milliseconds, 0 to write immediately
+     * @param cacheSize the max number of guilds kept in memory, 0 to load them all at startup
+     * @param cacheIdle the minutes after which an unused guild is evicted from the cache
+     * @throws IOException if the store cannot be opened
+     */
+    public SettingsRepository(Path settingsDir, SettingsBackend backend, SettingsFormat format, long flushInterval, long cacheSize, long cacheIdle) throws IOException
+    {
+        this(settingsDir, openStore(settingsDir, backend, format), flushInterval, cacheSize, cacheIdle);
     }
     
-    public SettingsRepository(Path settingsDir) throws IOException
+    /**
+     * Opens the repository.
+     * 
+     * @param settingsDir the settings directory, for the data not kept in the store
+     * @param store the storage of the guild settings, closed with the repository
+     * @param flushInterval the write-behind interval in milliseconds, 0 to write immediately
+     * @param cacheSize the max number of guilds kept in memory, 0 to load them all at startup
+     * @param cacheIdle the minutes after which an unused guild is evicted from the cache
+     * @throws IOException if the store cannot be read
+     */
+    public SettingsRepository(Path settingsDir, SettingsStore store, long flushInterval, long cacheSize, long cacheIdle) throws IOException
     {
         this.settingsDir = settingsDir;
+        this.store = store;
+        this.flushInterval = flushInterval;
+        for (int i = 0; i < WRITE_LOCKS; i++)
+        {
+            writeLocks[i] = new ReentrantLock();
+        }
+        if ((cacheSize > 0) && store.isRandomAccess())
+        {
+            guildsCache = Cache2kBuilder.of(Long.class, GuildSettings.class)
+                    .entryCapacity(cacheSize)
+                    .idleScanTime(cacheIdle, TimeUnit.MINUTES)
+                    .build();
+            guildsRepo = null;
+            LOGGER.info("Guild settings loaded on demand, up to {} cached", cacheSize);
+        }
+        else
+        {
+            if (cacheSize > 0)
+            {
+                LOGGER.warn("The settings store keeps every guild in memory, cache size ignored");
+            }
+            guildsCache = null;
+            Map<Long, GuildSettings> loaded = store.loadAll();
+            guildsRepo = new ConcurrentLongMap<>(loaded.size());
+            guildsRepo.putAll(loaded);
+        }
+        if (flushInterval > 0)
+        {
+            flusher = Executors.newSingleThreadScheduledExecutor(VirtualThreads.threadFactory("settings-flusher"));
+            flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            flusher = null;
+        }
+    }
+    
+    private static SettingsStore openStore(Path settingsDir, SettingsBackend backend, SettingsFormat format) throws IOException
+    {
         if (!Files.exists(settingsDir))
         {
             Files.createDirectories(settingsDir);
         }
-        Path guildDir = settingsDir.resolve(GuildSettings.PREFIX);
-        if (!Files.exists(guildDir))
+        Gson gson = new Gson();
+        switch (backend)
         {
-            Files.createDirectories(guildDir);
+            case JOURNAL:
+                return new SettingsJournal(settingsDir, gson);
+            case MVSTORE:
+                return new MVStoreSettingsStore(settingsDir, gson);
+            default:
+                return new FileSettingsStore(settingsDir, format, gson);
         }
-        guildsRepo = new HashMap<>();
-        Files.list(guildDir).forEach( singleGuild -> {
+    }
+    
+    private ReentrantLock writeLock(long guildId)
+    {
+        return writeLocks[Long.hashCode(guildId) & (WRITE_LOCKS - 1)];
+    }
+    
+    private GuildSettings cached(long guildId)
+    {
+        return (guildsCache != null) ? guildsCache.peek(guildId) : guildsRepo.get(guildId);
+    }
+    
+    /**
+     * Gets the current snapshot of a guild, loading it on a cache miss.
+     * 
+     * @param guildId the guild
+     * @return the snapshot, or null if the guild has no settings
+     */
+    private GuildSettings lookup(long guildId)
+    {
+        GuildSettings gs = cached(guildId);
+        if ((gs == null) && (guildsCache != null))
+        {
+            ReentrantLock lock = writeLock(guildId);
+            lock.lock();
             try
             {
-                String guildName = singleGuild.getFileName().toString();
-                Long guildId = Long.parseLong(guildName.replaceAll(".json", ""));
-                byte [] data = Files.readAllBytes(singleGuild);
-                GuildSettings settings = gsonSerializer.fromJson(new String(data, StandardCharsets.UTF_8), GuildSettings.class);
-                guildsRepo.put(guildId, settings);
-            } 
-            catch (NumberFormatException | IOException ex)
+                gs = guildsCache.peek(guildId);
+                if (gs == null)
+                {
+                    gs = loadOnDemand(guildId);
+                    guildsCache.put(guildId, gs);
+                }
+            }
+            finally
             {
-                LOGGER.error(null, ex);
+                lock.unlock();
             }
-        });
+        }
+        return (gs == ABSENT) ? null : gs;
+    }
+    
+    private GuildSettings loadOnDemand(long guildId)
+    {
+        // an evicted guild may still be waiting to be written
+        GuildSettings gs = pendingWrites.get(guildId);
+        if (gs != null)
+        {
+            return gs;
+        }
+        gs = ABSENT;
+        try
+        {
+            GuildSettings settings = store.load(guildId);
+            if (settings != null)
+            {
+                gs = settings;
+            }
+        }
+        catch (IOException ex)
+        {
+            LOGGER.error(null, ex);
+        }
+        if (gs != ABSENT)
+        {
+            GuildSettings completed = addMissingSystems(gs, defaultSystems);
+            if (completed != gs)
+            {
+                pendingWrites.put(guildId, completed);
+                gs = completed;
+            }
+        }
+        return gs;
     }
     
     public Set<Long> listGuilds()
     {
-        return guildsRepo.keySet();
+        if (guildsCache == null)
+        {
+            Set<Long> retVal = new HashSet<>();
+            for (long guildId : guildsRepo.keys())
+            {
+                retVal.add(guildId);
+            }
+            return Collections.unmodifiableSet(retVal);
+        }
+        try
+        {
+            return Collections.unmodifiableSet(store.listGuilds());
+        }
+        catch (IOException ex)
+        {
+            LOGGER.error(null, ex);
+            return Collections.emptySet();
+        }
     }
     
-    public void initSystem(Long guildId, RpgSystemDescriptor system)
+    public void initSystem(long guildId, RpgSystemDescriptor system)
     {
         initSystem(guildId, system, true);
     }
     
-    public void initSystem(Long guildId, RpgSystemDescriptor system, boolean enabled)
+    public void initSystem(long guildId, RpgSystemDescriptor system, boolean enabled)
     {
-        GuildSettings gs = loadGuildSettings(guildId).get();
-        if (!gs.getSystems().keySet().contains(system.getCommand()))
+        updateGuildSettings(guildId, gs -> {
+            if (gs.hasSystem(SystemIndex.ordinal(system.getCommand())))
+            {
+                return gs;
+            }
+            return gs.withSystem(system.getCommand(), new SystemSettings(enabled, null));
+        });
+    }
+    
+    /**
+     * Adds the missing systems to every known guild.
+     * 
+     * Guilds already having all the systems are left untouched, the others
+     * are updated in memory and then written once, in parallel. When the
+     * guilds are loaded on demand the systems are added as each guild is
+     * loaded instead.
+     * 
+     * @param systems the systems to initialize, enabled by default
+     * @return the number of updated guilds
+     */
+    public int initSystems(Collection<RpgSystemDescriptor> systems)
+    {
+        defaultSystems = Collections.unmodifiableList(new ArrayList<>(systems));
+        defaultSettings = addMissingSystems(new GuildSettings(), systems);
+        int count = 0;
+        if (guildsCache == null)
         {
-            SystemSettings ss = new SystemSettings();
-            ss.setEnabled(enabled);
-            gs.getSystems().put(system.getCommand(), ss);
+            for (long guildId : guildsRepo.keys())
+            {
+                if (initSystemsImpl(guildId, systems))
+                {
+                    count++;
+                }
+            }
+            flush();
         }
-        storeGuildSettings(guildId, gs);
+        return count;
     }
     
-    public void setSystemCommand(Long guildId, String system, boolean enabled, Long commandId)
+    /**
+     * Adds the missing systems to a guild, writing it at most once.
+     * 
+     * Guilds without stored settings are left alone, as the default already
+     * includes every system.
+     * 
+     * @param guildId the guild
+     * @param systems the systems to initialize, enabled by default
+     * @return true if the guild was updated
+     */
+    public boolean initSystems(long guildId, Collection<RpgSystemDescriptor> systems)
     {
-        GuildSettings gs = loadGuildSettings(guildId).get();
-        if (gs.getSystems().keySet().contains(system))
+        boolean changed = initSystemsImpl(guildId, systems);
+        if (changed && flusher == null)
+        {
+            flush();
+        }
+        return changed;
+    }
+    
+    private boolean initSystemsImpl(long guildId, Collection<RpgSystemDescriptor> systems)
+    {
+        ReentrantLock lock = writeLock(guildId);
+        lock.lock();
+        try
+        {
+            GuildSettings current = lookup(guildId);
+            if (current == null)
+            {
+                return false;
+            }
+            GuildSettings next = addMissingSystems(current, systems);
+            if (next != current)
+            {
+                publish(guildId, next);
+                return true;
+            }
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private static GuildSettings addMissingSystems(GuildSettings gs, Collection<RpgSystemDescriptor> systems)
+    {
+        Map<String, SystemSettings> missing = new HashMap<>();
+        for (RpgSystemDescriptor system : systems)
+        {
+            if (!gs.hasSystem(SystemIndex.ordinal(system.getCommand())))
+            {
+                missing.put(system.getCommand(), new SystemSettings(true, null));
+            }
+        }
+        return missing.isEmpty() ? gs : gs.withSystems(missing);
+    }
+    
+    public void setSystemCommand(long guildId, String system, boolean enabled, Long commandId)
+    {
+        int ordinal = SystemIndex.find(system);
+        if (ordinal < 0)
         {
-            SystemSettings ss = new SystemSettings();
-            ss.setEnabled(enabled);
-            ss.setCommandId(commandId);
-            gs.getSystems().put(system, ss);
+            return;
         }
-        storeGuildSettings(guildId, gs);
+        updateGuildSettings(guildId, gs -> {
+            if (gs.hasSystem(ordinal))
+            {
+                return gs.withSystem(system, new SystemSettings(enabled, commandId));
+            }
+            return gs;
+        });
     }
     
-    public boolean isSystemEnabled(Long guildId, RpgSystemDescriptor system)
+    public boolean isSystemEnabled(long guildId, RpgSystemDescriptor system)
     {
         GuildSettings gs = loadGuildSettings(guildId).get();
-        return gs.getSystems().keySet().contains(system.getCommand()) && gs.getSystems().get(system.getCommand()).isEnabled();
+        return gs.isSystemEnabled(SystemIndex.ordinal(system.getCommand()));
+    }
+    
+    /**
+     * Gets the settings of a guild, without side effects.
+     * 
+     * @param guildId the guild
+     * @return the stored settings, or the shared default for an unknown guild
+     */
+    public Optional<GuildSettings> loadGuildSettings(long guildId)
+    {
+        GuildSettings gs = lookup(guildId);
+        return Optional.of((gs != null) ? gs : defaultSettings);
     }
     
-    public Optional<GuildSettings> loadGuildSettings(Long guildId)
+    /**
+     * Atomically replaces the settings of a guild.
+     * 
+     * The update function receives the current snapshot (or the shared
+     * default for an unknown guild) and returns the new one; returning the
+     * same instance means no change, so nothing is stored. It is invoked
+     * while holding the write lock of the guild, so it must be quick.
+     * 
+     * @param guildId the guild
+     * @param update the update function
+     * @return the published settings
+     */
+    public GuildSettings updateGuildSettings(long guildId, UnaryOperator<GuildSettings> update)
     {
-        if (!guildsRepo.containsKey(guildId))
+        GuildSettings next;
+        boolean changed;
+        ReentrantLock lock = writeLock(guildId);
+        lock.lock();
+        try
         {
-            storeGuildSettings(guildId, new GuildSettings());
+            GuildSettings current = lookup(guildId);
+            GuildSettings base = (current != null) ? current : defaultSettings;
+            next = update.apply(base);
+            changed = (next != base);
+            if (changed)
+            {
+                publish(guildId, next);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (changed && flusher == null)
+        {
+            flush();
         }
-        return Optional.ofNullable(guildsRepo.get(guildId));
+        return next;
     }
     
-    public synchronized void storeGuildSettings(Long guildId, GuildSettings settings)
+    public void storeGuildSettings(long guildId, GuildSettings settings)
     {
+        updateGuildSettings(guildId, current -> settings);
+    }
+    
+    public void removeGuildSettings(long guildId)
+    {
+        ReentrantLock lock = writeLock(guildId);
+        lock.lock();
         try
         {
-            Path guildPath = settingsDir.resolve(GuildSettings.PREFIX).resolve(guildId + ".json");
-            Files.write(guildPath, gsonSerializer.toJson(settings).getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            if (guildsCache != null)
+            {
+                guildsCache.put(guildId, ABSENT);
+            }
+            else
+            {
+                guildsRepo.remove(guildId);
+            }
+            pendingWrites.put(guildId, ABSENT);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (flusher == null)
+        {
+            flush();
+        }
+    }
+    
+    /**
+     * Publishes a new snapshot and queues it for writing.
+     * 
+     * Must be called while holding the write lock of the guild, so that the
+     * queued snapshot is always the latest one.
+     */
+    private void publish(long guildId, GuildSettings settings)
+    {
+        if (guildsCache != null)
+        {
+            guildsCache.put(guildId, settings);
+        }
+        else
+        {
             guildsRepo.put(guildId, settings);
-        } 
-        catch (IOException ex)
+        }
+        pendingWrites.put(guildId, settings);
+    }
+    
+    /**
+     * Writes all the pending guild snapshots to disk.
+     */
+    public void flush()
+    {
+        fileLock.lock();
+        try
         {
-            LOGGER.error(null, ex);
+            List<Map.Entry<Long, GuildSettings>> batch = new ArrayList<>();
+            pendingWrites.forEachEntry((guildId, settings) -> batch.add(new AbstractMap.SimpleImmutableEntry<>(guildId, settings)));
+            if (batch.isEmpty())
+            {
+                return;
+            }
+            List<Map.Entry<Long, GuildSettings>> changes = new ArrayList<>(batch.size());
+            for (Map.Entry<Long, GuildSettings> entry : batch)
+            {
+                changes.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), (entry.getValue() != ABSENT) ? entry.getValue() : null));
+            }
+            try
+            {
+                store.write(changes);
+            }
+            catch (IOException ex)
+            {
+                // the batch stays pending and is retried with the next flush
+                LOGGER.error(null, ex);
+                return;
+            }
+            for (Map.Entry<Long, GuildSettings> entry : batch)
+            {
+                // kept if updated meanwhile: the newer snapshot goes with the next flush
+                pendingWrites.remove(entry.getKey(), entry.getValue());
+            }
+            if (guildsCache == null)
+            {
+                try
+                {
+                    store.checkpoint(guildsRepo);
+                }
+                catch (IOException ex)
+                {
+                    LOGGER.error(null, ex);
+                }
+            }
+            LOGGER.debug("Flushed {} guild settings", batch.size());
+        }
+        finally
+        {
+            fileLock.unlock();
+        }
+    }
+    
+    /**
+     * Loads the hashes of the slash commands registered by the last run.
+     * 
+     * @return the command name to definition hash map, empty if unknown
+     */
+    public Map<String, String> loadCommandHashes()
+    {
+        Path commandsPath = settingsDir.resolve(COMMANDS_FILE);
+        Map<String, String> retVal = new TreeMap<>();
+        if (Files.exists(commandsPath))
+        {
+            try
+            {
+                String data = new String(Files.readAllBytes(commandsPath), StandardCharsets.UTF_8);
+                Map<String, String> stored = gsonSerializer.fromJson(data, new TypeToken<Map<String, String>>(){}.getType());
+                if (stored != null)
+                {
+                    retVal.putAll(stored);
+                }
+            }
+            catch (IOException | JsonParseException ex)
+            {
+                LOGGER.error(null, ex);
+            }
         }
+        return retVal;
     }
     
-    public synchronized void removeGuildSettings(Long guildId)
+    public void storeCommandHashes(Map<String, String> hashes)
     {
+        fileLock.lock();
         try
         {
-            Path guildPath = settingsDir.resolve(GuildSettings.PREFIX).resolve(guildId + ".json");
-            Files.deleteIfExists(guildPath);
-            guildsRepo.remove(guildId);
-        } 
+            try
+            {
+                Path commandsPath = settingsDir.resolve(COMMANDS_FILE);
+                Files.write(commandsPath, gsonSerializer.toJson(hashes).getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            } 
+            catch (IOException ex)
+            {
+                LOGGER.error(null, ex);
+            }
+        }
+        finally
+        {
+            fileLock.unlock();
+        }
+    }
+    
+    /**
+     * Stops the background flusher and writes the pending changes.
+     */
+    @Override
+    public void close()
+    {
+        if (flusher != null)
+        {
+            flusher.shutdown();
+            try
+            {
+                flusher.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        if (guildsCache != null)
+        {
+            guildsCache.close();
+        }
+        try
+        {
+            store.close();
+        }
         catch (IOException ex)
         {
             LOGGER.error(null, ex);
         }
     }
     
-    
 }
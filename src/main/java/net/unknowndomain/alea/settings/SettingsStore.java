@@ -0,0 +1,90 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.settings;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent storage behind the {@link SettingsRepository}.
+ *
+ * The repository keeps the settings in memory and takes care of locking and
+ * write-behind; the store only has to load and save them. Writes are always
+ * issued by a single thread at a time.
+ *
+ * @author journeyman
+ */
+public interface SettingsStore extends Closeable
+{
+    /**
+     * Loads every stored guild.
+     *
+     * @return the guild settings by guild id
+     * @throws IOException if the store cannot be read
+     */
+    Map<Long, GuildSettings> loadAll() throws IOException;
+
+    /**
+     * Tells whether single guilds can be loaded on demand; if not, the
+     * repository loads every guild at startup.
+     *
+     * @return true if {@link #load(long)} and {@link #listGuilds()} are supported
+     */
+    boolean isRandomAccess();
+
+    /**
+     * Loads a single guild.
+     *
+     * @param guildId the guild
+     * @return the settings, or null if the guild is not stored
+     * @throws IOException if the store cannot be read
+     */
+    GuildSettings load(long guildId) throws IOException;
+
+    /**
+     * Lists the stored guilds.
+     *
+     * @return the guild ids
+     * @throws IOException if the store cannot be read
+     */
+    Set<Long> listGuilds() throws IOException;
+
+    /**
+     * Saves a batch of changes.
+     *
+     * If an exception is thrown the whole batch is retried later, so
+     * applying part of it twice must be harmless.
+     *
+     * @param batch the changes, a null value removes the guild
+     * @throws IOException if the batch cannot be saved
+     */
+    void write(List<Map.Entry<Long, GuildSettings>> batch) throws IOException;
+
+    /**
+     * Offers the whole state to the store, after a write, when every guild
+     * is kept in memory; stores that need to compact their data can use it.
+     *
+     * @param state the current settings of every guild
+     * @throws IOException if the store cannot be written
+     */
+    default void checkpoint(Map<Long, GuildSettings> state) throws IOException
+    {
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.settings;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns a stable ordinal to each system id, for the lifetime of the
+ * process.
+ *
+ * The installed systems are registered when the command registry is built,
+ * so they get the lowest ordinals; ids found only in the stored settings,
+ * such as uninstalled systems, are appended when first seen.
+ *
+ * @author journeyman
+ */
+public final class SystemIndex
+{
+    private static final Map<String, Integer> ORDINALS = new ConcurrentHashMap<>();
+    private static volatile String [] names = new String[0];
+
+    private SystemIndex()
+    {
+    }
+
+    /**
+     * Gets the ordinal of a system, assigning a new one if needed.
+     *
+     * @param systemId the system id
+     * @return the ordinal
+     */
+    public static int ordinal(String systemId)
+    {
+        Integer ordinal = ORDINALS.get(systemId);
+        return (ordinal != null) ? ordinal : register(systemId);
+    }
+
+    /**
+     * Gets the ordinal of a system without registering it, for ids coming
+     * from user input.
+     *
+     * @param systemId the system id
+     * @return the ordinal, or -1 if the id was never registered
+     */
+    public static int find(String systemId)
+    {
+        Integer ordinal = ORDINALS.get(systemId);
+        return (ordinal != null) ? ordinal : -1;
+    }
+
+    private static synchronized int register(String systemId)
+    {
+        Integer ordinal = ORDINALS.get(systemId);
+        if (ordinal == null)
+        {
+            String [] grown = Arrays.copyOf(names, names.length + 1);
+            ordinal = names.length;
+            grown[ordinal] = systemId;
+            names = grown;
+            ORDINALS.put(systemId, ordinal);
+        }
+        return ordinal;
+    }
+
+    /**
+     * Gets the system id with the given ordinal.
+     *
+     * @param ordinal the ordinal
+     * @return the system id
+     */
+    public static String name(int ordinal)
+    {
+        return names[ordinal];
+    }
+
+}
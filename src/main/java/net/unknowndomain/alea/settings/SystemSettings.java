@@ -24,23 +24,23 @@ public class SystemSettings
     private boolean enabled = true;
     private Long commandId;
 
-    public boolean isEnabled()
+    public SystemSettings()
     {
-        return enabled;
     }
-
-    public void setEnabled(boolean enabled)
+    
+    public SystemSettings(boolean enabled, Long commandId)
     {
         this.enabled = enabled;
+        this.commandId = commandId;
     }
-
-    public Long getCommandId()
+    
+    public boolean isEnabled()
     {
-        return commandId;
+        return enabled;
     }
 
-    public void setCommandId(Long commandId)
+    public Long getCommandId()
     {
-        this.commandId = commandId;
+        return commandId;
     }
 }
@@ -17,8 +17,11 @@ package net.unknowndomain.alea.slash;
 
 import java.util.Locale;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import net.unknowndomain.alea.GenericListener;
+import net.unknowndomain.alea.bot.CommandRegistry;
 import net.unknowndomain.alea.bot.MsgFormatter;
 import net.unknowndomain.alea.command.PrintableOutput;
 import net.unknowndomain.alea.expr.Expression;
@@ -33,11 +36,15 @@ import net.unknowndomain.alea.settings.GuildSettings;
 import net.unknowndomain.alea.settings.SettingsRepository;
 import net.unknowndomain.alea.systems.RpgSystemCommand;
 import net.unknowndomain.alea.systems.RpgSystemOptions;
+import net.unknowndomain.alea.utils.CommandExecutor;
+import net.unknowndomain.alea.utils.IconAttachmentCache;
+import net.unknowndomain.alea.utils.IconAttachmentCache.PendingUploads;
 import org.javacord.api.event.interaction.SlashCommandCreateEvent;
 import org.javacord.api.interaction.SlashCommandInteraction;
 import org.javacord.api.interaction.SlashCommandInteractionOption;
-import org.javacord.api.interaction.callback.InteractionImmediateResponseBuilder;
+import org.javacord.api.interaction.callback.InteractionOriginalResponseUpdater;
 import org.javacord.api.listener.interaction.SlashCommandCreateListener;
+import org.javacord.api.util.logging.ExceptionLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,19 +55,40 @@ import org.slf4j.LoggerFactory;
 public class AleaSlashCommands extends GenericListener implements SlashCommandCreateListener
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(AleaSlashCommands.class);
+    private static final String SERVER_ONLY_MESSAGE = "This command is only available in a server";
     
+    private final CommandRegistry registry;
     private final SettingsRepository settingsRepository;
     private final String prefix;
+    private final CommandExecutor executor;
     
-    public AleaSlashCommands(SettingsRepository settingsRepository, String prefix, UUID namespace)
+    public AleaSlashCommands(CommandRegistry registry, SettingsRepository settingsRepository, CommandExecutor executor, String prefix, UUID namespace)
     {
         super(namespace);
+        this.registry = registry;
         this.settingsRepository = settingsRepository;
+        this.executor = executor;
         this.prefix = prefix;
     }
 
     @Override
     public void onSlashCommandCreate(SlashCommandCreateEvent event)
+    {
+        SlashCommandInteraction interaction = event.getSlashCommandInteraction();
+        CompletableFuture<InteractionOriginalResponseUpdater> ack = interaction.respondLater();
+        if (!executor.execute(() -> handleInteraction(event, ack)))
+        {
+            ack.thenCompose(
+                    updater -> updater.setContent(CommandExecutor.REJECTED_MESSAGE).update()
+            ).exceptionally(ExceptionLogger.get());
+        }
+    }
+    
+    /**
+     * Runs the command on the executor; the interaction has already been
+     * acknowledged, so the result replaces the deferred response.
+     */
+    private void handleInteraction(SlashCommandCreateEvent event, CompletableFuture<InteractionOriginalResponseUpdater> ack)
     {
         SlashCommandInteraction interaction = event.getSlashCommandInteraction();
         String commandName = interaction.getCommandName();
@@ -68,13 +96,13 @@ public class AleaSlashCommands extends GenericListener implements SlashCommandCr
         {
             commandName = commandName.replaceFirst(prefix, "");
         }
-        Long guildId = null;
+        OptionalLong guildId = OptionalLong.empty();
         Locale locale = Locale.ENGLISH;
         Optional<UUID> callerId = buildCallerId(interaction.getUser());
         if (interaction.getServer().isPresent())
             {
-                guildId = interaction.getServer().get().getId();
-                Optional<GuildSettings> guildSettings = settingsRepository.loadGuildSettings(guildId);
+                guildId = OptionalLong.of(interaction.getServer().get().getId());
+                Optional<GuildSettings> guildSettings = settingsRepository.loadGuildSettings(guildId.getAsLong());
                 if (guildSettings.isPresent())
                 {
                     LOGGER.debug("GuildSettings found");
@@ -82,7 +110,11 @@ public class AleaSlashCommands extends GenericListener implements SlashCommandCr
                 }
             }
         ReturnMsg result = new MsgBuilder().build();
-        if ("guild-config".equalsIgnoreCase(commandName))
+        if ("guild-config".equalsIgnoreCase(commandName) && !guildId.isPresent())
+        {
+            result = new MsgBuilder().append(SERVER_ONLY_MESSAGE).build();
+        }
+        else if ("guild-config".equalsIgnoreCase(commandName))
         {
             Optional<SlashCommandInteractionOption> opt = interaction.getOptionByIndex(0);
             String cmdLine = "--help";
@@ -96,12 +128,13 @@ public class AleaSlashCommands extends GenericListener implements SlashCommandCr
                     cmdLine += "=" + optPar.get().getStringValue().get();
                 }
             }
-            result = new GuildConfigCommand(settingsRepository).execCommand(cmdLine, event.getApi(), guildId);
+            result = new GuildConfigCommand(registry, settingsRepository).execCommand(cmdLine, event.getApi(), guildId.getAsLong());
         }
         else if ("expr".equalsIgnoreCase(commandName))
         {
             Optional<SlashCommandInteractionOption> optExpr = interaction.getOptionByName("expression");
-            result = (new ExpressionCommand()).printHelp(locale);
+            Locale helpLocale = locale;
+            result = registry.getHelp(ExpressionCommand.class.getName(), helpLocale, false, () -> (new ExpressionCommand()).printHelp(helpLocale));
             boolean help = SystemHelper.parseBooleanOption(interaction, "help");
             boolean verbose = SystemHelper.parseBooleanOption(interaction, "verbose");
             if (optExpr.isPresent() && !help)
@@ -119,14 +152,7 @@ public class AleaSlashCommands extends GenericListener implements SlashCommandCr
         }
         else
         {
-            Optional<RpgSystemCommand> foundCmd = Optional.empty();
-            for (RpgSystemCommand cmd : RpgSystemCommand.LOADER)
-            {
-                if (cmd.getCommandDesc().getCommand().equals(commandName))
-                {
-                    foundCmd = Optional.of(cmd);
-                }
-            }
+            Optional<RpgSystemCommand> foundCmd = registry.getSystem(commandName);
             if (foundCmd.isPresent())
             {
                 RpgSystemOptions options = foundCmd.get().buildOptions();
@@ -138,12 +164,18 @@ public class AleaSlashCommands extends GenericListener implements SlashCommandCr
                 }
                 else
                 {
-                    result = PicocliParser.printHelp(interaction.getCommandName(), options, locale);
+                    String helpName = interaction.getCommandName();
+                    Locale helpLocale = locale;
+                    result = registry.getHelp(helpName, helpLocale, false, () -> PicocliParser.printHelp(helpName, options, helpLocale));
                 }
             }
         }
-        InteractionImmediateResponseBuilder responder = interaction.createImmediateResponder();
-        MsgFormatter.appendMessage(responder, result);
-        responder.respond();
+        ReturnMsg reply = result;
+        ack.thenCompose(
+                updater -> {
+                    PendingUploads uploads = MsgFormatter.appendMessage(updater, reply);
+                    return updater.update().thenAccept(sent -> IconAttachmentCache.getInstance().recordUploads(sent, uploads));
+                }
+        ).exceptionally(ExceptionLogger.get());
     }
 }
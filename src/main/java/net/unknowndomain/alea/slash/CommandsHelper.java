@@ -15,10 +15,20 @@
  */
 package net.unknowndomain.alea.slash;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.unknowndomain.alea.bot.CommandRegistry;
 import net.unknowndomain.alea.settings.SettingsRepository;
 import net.unknowndomain.alea.systems.RpgSystemCommand;
 import org.javacord.api.DiscordApi;
@@ -29,6 +39,7 @@ import org.javacord.api.interaction.SlashCommandOption;
 import org.javacord.api.interaction.SlashCommandOptionBuilder;
 import org.javacord.api.interaction.SlashCommandOptionChoice;
 import org.javacord.api.interaction.SlashCommandOptionType;
+import org.javacord.api.util.logging.ExceptionLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,9 +51,21 @@ public class CommandsHelper
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(CommandsHelper.class);
     
+    private static final ConcurrentMap<String, SlashCommandDefinition> SYSTEM_DEFINITIONS = new ConcurrentHashMap<>();
+    
+    private static final SlashCommandDefinition EXPR_DEFINITION = new SlashCommandDefinition(
+            "expr", 
+            "Solve the dice expression (example: 1d8+2d4-1d6+15-7)", 
+            Arrays.asList(
+                    SystemHelper.buildStringOption("expression", "The dice expression to solve", false),
+                    SystemHelper.buildBooleanOption("help", "Print the help", false),
+                    SystemHelper.buildBooleanOption("verbose", "Set the output as verbose", false)
+            )
+    );
+    
     private static String prefix = "test-";
     
-    public static void deleteCommands(DiscordApi api, Long guildId, Long commandId)
+    public static void deleteCommands(DiscordApi api, long guildId, long commandId)
     {
         Optional<Server> server = api.getServerById(guildId);
         if (server.isPresent())
@@ -55,34 +78,59 @@ public class CommandsHelper
         }
     }
     
-    public static void deleteCommands(DiscordApi api)
+    public static void deleteCommands(DiscordApi api, SettingsRepository settings)
     {
-        api.getGlobalSlashCommands().thenAccept(
+        api.getGlobalSlashCommands().thenCompose(
             globalCommands -> {
+                List<CompletableFuture<?>> pending = new LinkedList<>();
                 for (SlashCommand cmd : globalCommands){
-                    cmd.createSlashCommandUpdater();
-                    cmd.deleteGlobal();
+                    pending.add(cmd.deleteGlobal());
                 }
+                return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()]));
             }
-        );
+        ).thenRun(
+            // the stored hashes no longer describe anything registered
+            () -> settings.storeCommandHashes(new TreeMap<>())
+        ).exceptionally(ExceptionLogger.get());
     }
     
-    public static void setupCommands(DiscordApi api, String commandPrefix, SettingsRepository settings)
+    public static void setupCommands(DiscordApi api, String commandPrefix, CommandRegistry registry, SettingsRepository settings)
     {
         prefix = commandPrefix;
-        List<SlashCommandBuilder> commands = new LinkedList<>();
-        commands.add(setupExprCommand());
-        commands.add(setupGuildSettingCommand());
-        for (RpgSystemCommand cmd : RpgSystemCommand.LOADER)
+        List<SlashCommandDefinition> definitions = new LinkedList<>();
+        definitions.add(EXPR_DEFINITION);
+        definitions.add(setupGuildSettingCommand(registry));
+        for (RpgSystemCommand cmd : registry.getSystems())
         {
             LOGGER.debug(cmd.getCommandDesc().getCommand());
-            commands.add(setupSystemCommand(cmd));
+            definitions.add(getSystemDefinition(cmd, Locale.ENGLISH));
         }
-        api.bulkOverwriteGlobalApplicationCommands(commands).join();
-        for (Long guildId : settings.listGuilds())
+        Map<String, SlashCommandDefinition> commands = new TreeMap<>();
+        Map<String, String> hashes = new TreeMap<>();
+        for (SlashCommandDefinition def : definitions)
         {
-            updateGuild(api, settings, guildId);
+            commands.put(prefix + def.getName(), def);
+            hashes.put(prefix + def.getName(), def.getHash());
         }
+        Map<String, String> registered = settings.loadCommandHashes();
+        api.getGlobalSlashCommands().thenCompose(
+            globalCommands -> {
+                Set<String> live = new TreeSet<>();
+                for (SlashCommand cmd : globalCommands)
+                {
+                    live.add(cmd.getName());
+                }
+                // the hash file alone can be stale if commands were removed on Discord's side
+                if (hashes.equals(registered) && live.equals(commands.keySet()))
+                {
+                    LOGGER.info("Slash commands unchanged, registration skipped");
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                return syncCommands(api, globalCommands, commands, registered).thenRun(
+                    () -> settings.storeCommandHashes(hashes)
+                );
+            }
+        ).exceptionally(ExceptionLogger.get());
 //        List<SlashCommand> cose = api.getGlobalSlashCommands().join();
 //        for (SlashCommand sc : cose)
 //        {
@@ -90,7 +138,37 @@ public class CommandsHelper
 //        }
     }
     
-    public static void updateGuild(DiscordApi api, SettingsRepository settings, Long guildId)
+    private static CompletableFuture<Void> syncCommands(DiscordApi api, List<SlashCommand> globalCommands, Map<String, SlashCommandDefinition> commands, Map<String, String> registered)
+    {
+        List<CompletableFuture<?>> pending = new LinkedList<>();
+        Map<String, SlashCommand> existing = new HashMap<>();
+        for (SlashCommand cmd : globalCommands)
+        {
+            if (commands.containsKey(cmd.getName()))
+            {
+                existing.put(cmd.getName(), cmd);
+            }
+            else
+            {
+                LOGGER.info("Deleting slash command {}", cmd.getName());
+                pending.add(cmd.deleteGlobal());
+            }
+        }
+        for (Map.Entry<String, SlashCommandDefinition> entry : commands.entrySet())
+        {
+            String name = entry.getKey();
+            SlashCommandDefinition def = entry.getValue();
+            if (!existing.containsKey(name) || !def.getHash().equals(registered.get(name)))
+            {
+                // creating a global command with an already registered name overwrites it
+                LOGGER.info("Registering slash command {}", name);
+                pending.add(def.toBuilder(prefix).createGlobal(api));
+            }
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()]));
+    }
+    
+    public static void updateGuild(DiscordApi api, SettingsRepository settings, long guildId)
     {
         
 //        Optional<Server> guild = api.getServerById(guildId);
@@ -115,9 +193,9 @@ public class CommandsHelper
 //        }
     }
     
-    public static void updateSystemCommand(SettingsRepository settings, DiscordApi api, Long guildId, String systemId)
+    public static void updateSystemCommand(CommandRegistry registry, SettingsRepository settings, DiscordApi api, long guildId, String systemId)
     {
-        Optional<SlashCommandBuilder> scb = setupSystemCommand(systemId);
+        Optional<SlashCommandBuilder> scb = setupSystemCommand(registry, systemId);
         Optional<Server> server = api.getServerById(guildId);
         if (scb.isPresent() && server.isPresent())
         {
@@ -127,68 +205,68 @@ public class CommandsHelper
         }
     }
     
-    public static Optional<SlashCommandBuilder> setupSystemCommand(String systemId)
+    public static Optional<SlashCommandBuilder> setupSystemCommand(CommandRegistry registry, String systemId)
     {
-        for (RpgSystemCommand cmd : RpgSystemCommand.LOADER)
-        {
-            if (systemId.equals(cmd.getCommandDesc().getCommand()))
-            {
-                return Optional.ofNullable(setupSystemCommand(cmd));
-            }
-        }
-        return Optional.empty();
+        return registry.getSystem(systemId).map(CommandsHelper::setupSystemCommand);
     }
     
-    private static SlashCommandBuilder setupExprCommand()
+    /**
+     * Gets the slash command definition of a system for the given locale.
+     * 
+     * The definitions are computed once and shared by every shard and guild.
+     * 
+     * @param cmd the system
+     * @param locale the locale used for the option descriptions
+     * @return the cached definition
+     */
+    public static SlashCommandDefinition getSystemDefinition(RpgSystemCommand cmd, Locale locale)
     {
-        SlashCommandBuilder exprCommand = new SlashCommandBuilder().setName(prefix +"expr").setDescription("Solve the dice expression (example: 1d8+2d4-1d6+15-7)");
-        exprCommand.addOption(SystemHelper.buildStringOption("expression", "The dice expression to solve", false));
-        exprCommand.addOption(SystemHelper.buildBooleanOption("help", "Print the help", false));
-        exprCommand.addOption(SystemHelper.buildBooleanOption("verbose", "Set the output as verbose", false));
-        return exprCommand;
+        String key = cmd.getCommandDesc().getCommand() + "@" + locale.toLanguageTag();
+        return SYSTEM_DEFINITIONS.computeIfAbsent(key, k -> buildSystemDefinition(cmd, locale));
     }
     
-    private static SlashCommandBuilder setupGuildSettingCommand()
+    private static SlashCommandDefinition buildSystemDefinition(RpgSystemCommand cmd, Locale locale)
+    {
+        List<SlashCommandOption> options = SystemHelper.exportOptions(cmd.getCommandDesc().getSystem(), cmd.buildOptions(), locale);
+        return new SlashCommandDefinition(cmd.getCommandDesc().getCommand(), cmd.getCommandDesc().getSystem(), options);
+    }
+    
+    private static SlashCommandDefinition setupGuildSettingCommand(CommandRegistry registry)
     {
         List<SlashCommandOptionChoice> systems = new LinkedList<>();
-        for (RpgSystemCommand cmd : RpgSystemCommand.LOADER)
+        for (RpgSystemCommand cmd : registry.getSystems())
         {
             systems.add(SlashCommandOptionChoice.create(cmd.getCommandDesc().getCommand(), cmd.getCommandDesc().getCommand()));
         }
-        SlashCommandBuilder exprCommand = new SlashCommandBuilder().setName(prefix +"guild-config").setDescription("Edit the guild settings");
-        exprCommand.addOption(SlashCommandOption.create(SlashCommandOptionType.SUB_COMMAND, "get-lang", "Gets the guild language used by the RPG systems"));
-        exprCommand.addOption(SlashCommandOption.createWithOptions(SlashCommandOptionType.SUB_COMMAND, "set-lang", "Sets the guild language used by RPG systems", 
+        List<SlashCommandOption> options = new LinkedList<>();
+        options.add(SlashCommandOption.create(SlashCommandOptionType.SUB_COMMAND, "get-lang", "Gets the guild language used by the RPG systems"));
+        options.add(SlashCommandOption.createWithOptions(SlashCommandOptionType.SUB_COMMAND, "set-lang", "Sets the guild language used by RPG systems", 
                 new SlashCommandOptionBuilder()
                         .setType(SlashCommandOptionType.STRING)
                         .setName("language")
                         .setDescription("The language to use if available")
                         .setRequired(true)));
-//        exprCommand.addOption(SlashCommandOption.createWithOptions(SlashCommandOptionType.SUB_COMMAND, "enable-system", "Enable RPG systems", 
+//        options.add(SlashCommandOption.createWithOptions(SlashCommandOptionType.SUB_COMMAND, "enable-system", "Enable RPG systems", 
 //                new SlashCommandOptionBuilder()
 //                        .setType(SlashCommandOptionType.STRING)
 //                        .setDescription("The RPG system to enable")
 //                        .setName("systemId")
 //                        .setChoices(systems)
 //                        .setRequired(true)));
-//        exprCommand.addOption(SlashCommandOption.createWithOptions(SlashCommandOptionType.SUB_COMMAND, "disable-system", "Disable RPG systems", 
+//        options.add(SlashCommandOption.createWithOptions(SlashCommandOptionType.SUB_COMMAND, "disable-system", "Disable RPG systems", 
 //                new SlashCommandOptionBuilder()
 //                        .setType(SlashCommandOptionType.STRING)
 //                        .setDescription("The RPG system to disable")
 //                        .setName("systemId")
 //                        .setChoices(systems)
 //                        .setRequired(true)));
-        exprCommand.addOption(SlashCommandOption.create(SlashCommandOptionType.SUB_COMMAND, "clear", "Remove all of the guild's stored data"));
+        options.add(SlashCommandOption.create(SlashCommandOptionType.SUB_COMMAND, "clear", "Remove all of the guild's stored data"));
 //        exprCommand.setDefaultPermission(Boolean.FALSE);
-        return exprCommand;
+        return new SlashCommandDefinition("guild-config", "Edit the guild settings", options);
     }
     
     private static SlashCommandBuilder setupSystemCommand(RpgSystemCommand cmd)
     {
-        SlashCommandBuilder syscommand = SlashCommand.with(prefix + cmd.getCommandDesc().getCommand(), cmd.getCommandDesc().getSystem());
-        for (SlashCommandOption option : SystemHelper.exportOptions(cmd.getCommandDesc().getSystem(), cmd.buildOptions(), Locale.ENGLISH))
-        {
-            syscommand.addOption(option);
-        }
-        return syscommand;
+        return getSystemDefinition(cmd, Locale.ENGLISH).toBuilder(prefix);
     }
 }
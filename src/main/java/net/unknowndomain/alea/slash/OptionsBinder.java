@@ -0,0 +1,246 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.slash;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.unknowndomain.alea.systems.RpgSystemOptions;
+import net.unknowndomain.alea.systems.annotations.RpgSystemData;
+import net.unknowndomain.alea.systems.annotations.RpgSystemOption;
+import org.javacord.api.interaction.SlashCommandInteraction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binds the slash command options onto a {@link RpgSystemOptions} instance.
+ *
+ * The class hierarchy is inspected only once per options class: the option
+ * names, their kind and a setter handle for each field are cached, so that
+ * binding an interaction only has to look up the values and invoke the setters.
+ *
+ * @author journeyman
+ */
+class OptionsBinder
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(OptionsBinder.class);
+    private static final ConcurrentMap<Class<?>, OptionsBinder> BINDERS = new ConcurrentHashMap<>();
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, RpgSystemOptions.class, Object.class);
+    private static final Method FIELD_SET;
+    
+    static {
+        try
+        {
+            FIELD_SET = Field.class.getMethod("set", Object.class, Object.class);
+        }
+        catch (NoSuchMethodException ex)
+        {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private enum Kind
+    {
+        BOOLEAN, NUMBER, LIST, STRING;
+
+        static Kind of(Class<?> c)
+        {
+            if (Boolean.class.isAssignableFrom(c) || Boolean.TYPE.isAssignableFrom(c))
+            {
+                return BOOLEAN;
+            }
+            if (
+                    Number.class.isAssignableFrom(c) ||
+                    Short.TYPE.isAssignableFrom(c) ||
+                    Integer.TYPE.isAssignableFrom(c) ||
+                    Long.TYPE.isAssignableFrom(c) ||
+                    Float.TYPE.isAssignableFrom(c) ||
+                    Double.TYPE.isAssignableFrom(c)
+                )
+            {
+                return NUMBER;
+            }
+            if (java.util.Collection.class.isAssignableFrom(c))
+            {
+                return LIST;
+            }
+            return STRING;
+        }
+    }
+
+    private static final class Binding
+    {
+        private final String name;
+        private final Kind kind;
+        private final Class<?> type;
+        private final MethodHandle setter;
+
+        private Binding(String name, Kind kind, Class<?> type, MethodHandle setter)
+        {
+            this.name = name;
+            this.kind = kind;
+            this.type = type;
+            this.setter = setter;
+        }
+    }
+
+    private final boolean subCommands;
+    private final List<Binding> bindings;
+
+    private OptionsBinder(Class<?> optionsClass)
+    {
+        boolean subcom = false;
+        if (optionsClass.isAnnotationPresent(RpgSystemData.class))
+        {
+            RpgSystemData data = optionsClass.getAnnotation(RpgSystemData.class);
+            subcom = (data.groupsName().length > 0);
+        }
+        this.subCommands = subcom;
+        List<Binding> list = new ArrayList<>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Class<?> workingClass = optionsClass;
+        while (true)
+        {
+            for (Field field : workingClass.getDeclaredFields())
+            {
+                if (field.isAnnotationPresent(RpgSystemOption.class))
+                {
+                    MethodHandle setter = buildSetter(lookup, field);
+                    for (RpgSystemOption annotation : field.getAnnotationsByType(RpgSystemOption.class))
+                    {
+                        String optName = null;
+                        if (!annotation.name().isEmpty())
+                        {
+                            optName = annotation.name();
+                        }
+                        if ((optName == null) && (!annotation.shortcode().isEmpty()))
+                        {
+                            optName = annotation.shortcode();
+                        }
+                        if (optName != null)
+                        {
+                            list.add(new Binding(optName, Kind.of(field.getType()), field.getType(), setter));
+                        }
+                    }
+                }
+            }
+            if (Objects.equals(RpgSystemOptions.class, workingClass) || workingClass.getSuperclass() == null)
+            {
+                break;
+            }
+            workingClass = workingClass.getSuperclass();
+        }
+        this.bindings = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Builds the setter of an option field; final fields have no setter
+     * handle, so they are set through {@link Field#set} instead.
+     *
+     * @throws IllegalStateException if the field cannot be set at all
+     */
+    private static MethodHandle buildSetter(MethodHandles.Lookup lookup, Field field)
+    {
+        try
+        {
+            field.setAccessible(true);
+            if (Modifier.isFinal(field.getModifiers()))
+            {
+                return lookup.unreflect(FIELD_SET).bindTo(field).asType(SETTER_TYPE);
+            }
+            return lookup.unreflectSetter(field).asType(SETTER_TYPE);
+        }
+        catch (IllegalAccessException | RuntimeException ex)
+        {
+            throw new IllegalStateException("Unable to bind option field " + field.getDeclaringClass().getName() + "." + field.getName(), ex);
+        }
+    }
+
+    static OptionsBinder of(Class<? extends RpgSystemOptions> optionsClass)
+    {
+        return BINDERS.computeIfAbsent(optionsClass, OptionsBinder::new);
+    }
+
+    boolean hasSubCommands()
+    {
+        return subCommands;
+    }
+
+    void bind(RpgSystemOptions options, SlashCommandInteraction interaction)
+    {
+        for (Binding binding : bindings)
+        {
+            Object opt = readValue(binding, interaction);
+            if (opt != null)
+            {
+                try
+                {
+                    binding.setter.invokeExact(options, opt);
+                }
+                catch (Throwable ex)
+                {
+                    LOGGER.error(null, ex);
+                }
+            }
+        }
+    }
+
+    private Object readValue(Binding binding, SlashCommandInteraction interaction)
+    {
+        switch (binding.kind)
+        {
+            case BOOLEAN:
+                return subCommands ? SystemHelper.parseBooleanSubOption(interaction, binding.name) : SystemHelper.parseBooleanOption(interaction, binding.name);
+            case NUMBER:
+                Integer value = subCommands ? SystemHelper.parseIntegerSubOption(interaction, binding.name) : SystemHelper.parseIntegerOption(interaction, binding.name);
+                return (value == null) ? null : convertNumber(value, binding.type);
+            case LIST:
+                return subCommands ? SystemHelper.parseListSubOption(interaction, binding.name) : SystemHelper.parseListOption(interaction, binding.name);
+            default:
+                return subCommands ? SystemHelper.parseStringSubOption(interaction, binding.name) : SystemHelper.parseStringOption(interaction, binding.name);
+        }
+    }
+
+    private static Object convertNumber(Integer value, Class<?> type)
+    {
+        if (Long.TYPE.equals(type) || Long.class.equals(type))
+        {
+            return value.longValue();
+        }
+        if (Short.TYPE.equals(type) || Short.class.equals(type))
+        {
+            return value.shortValue();
+        }
+        if (Float.TYPE.equals(type) || Float.class.equals(type))
+        {
+            return value.floatValue();
+        }
+        if (Double.TYPE.equals(type) || Double.class.equals(type))
+        {
+            return value.doubleValue();
+        }
+        return value;
+    }
+}
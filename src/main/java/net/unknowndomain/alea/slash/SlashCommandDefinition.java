@@ -0,0 +1,135 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.slash;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.javacord.api.interaction.SlashCommandBuilder;
+import org.javacord.api.interaction.SlashCommandOption;
+import org.javacord.api.interaction.SlashCommandOptionChoice;
+
+/**
+ * Immutable definition of a slash command, without the command prefix.
+ *
+ * The definition carries a content hash computed over name, description and
+ * the whole option tree: two definitions with the same hash register the same
+ * command on Discord.
+ *
+ * @author journeyman
+ */
+public class SlashCommandDefinition
+{
+    private final String name;
+    private final String description;
+    private final List<SlashCommandOption> options;
+    private final String hash;
+
+    public SlashCommandDefinition(String name, String description, List<SlashCommandOption> options)
+    {
+        this.name = name;
+        this.description = description;
+        this.options = Collections.unmodifiableList(new ArrayList<>(options));
+        this.hash = computeHash(name, description, this.options);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getDescription()
+    {
+        return description;
+    }
+
+    public List<SlashCommandOption> getOptions()
+    {
+        return options;
+    }
+
+    public String getHash()
+    {
+        return hash;
+    }
+
+    public SlashCommandBuilder toBuilder(String prefix)
+    {
+        SlashCommandBuilder builder = new SlashCommandBuilder().setName(prefix + name).setDescription(description);
+        for (SlashCommandOption option : options)
+        {
+            builder.addOption(option);
+        }
+        return builder;
+    }
+
+    private static String computeHash(String name, String description, List<SlashCommandOption> options)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append('\u0000').append(description).append('\u0000');
+        appendOptions(sb, options);
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return toHex(digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void appendOptions(StringBuilder sb, List<SlashCommandOption> options)
+    {
+        sb.append('[');
+        for (SlashCommandOption option : options)
+        {
+            sb.append('{');
+            sb.append(option.getType()).append('\u0000');
+            sb.append(option.getName()).append('\u0000');
+            sb.append(option.getDescription()).append('\u0000');
+            sb.append(option.isRequired()).append('\u0000');
+            sb.append('(');
+            for (SlashCommandOptionChoice choice : option.getChoices())
+            {
+                // the value is what the interaction receives, so it must count as well
+                sb.append(choice.getName()).append('=');
+                choice.getStringValue().ifPresent(value -> sb.append('s').append(value));
+                choice.getLongValue().ifPresent(value -> sb.append('l').append(value));
+                sb.append('\u0000');
+            }
+            sb.append(')');
+            // sub commands and groups carry their own options, hashed recursively
+            appendOptions(sb, option.getOptions());
+            sb.append('}');
+        }
+        sb.append(']');
+    }
+
+    static String toHex(byte [] data)
+    {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data)
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
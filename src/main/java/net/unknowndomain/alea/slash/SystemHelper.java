@@ -347,16 +347,9 @@ public class SystemHelper
     
     public static void parseOptions(RpgSystemOptions options, SlashCommandInteraction interaction)
     {
-        List<Field> fields = new ArrayList<>();
-        Class workingClass = options.getClass();
-        boolean forceHelp = false;
-        boolean subcom = false;
-        if (options.getClass().isAnnotationPresent(RpgSystemData.class)) 
-        {
-            RpgSystemData data = options.getClass().getAnnotation(RpgSystemData.class);
-            subcom = (data.groupsName().length > 0);
-        }
-        if (subcom)
+        OptionsBinder binder = OptionsBinder.of(options.getClass());
+        boolean forceHelp;
+        if (binder.hasSubCommands())
         {
             forceHelp = interaction.getOptions().get(0).getOptions() == null || interaction.getOptions().get(0).getOptions().isEmpty();
         }
@@ -364,106 +357,7 @@ public class SystemHelper
         {
             forceHelp = interaction.getOptions() == null || interaction.getOptions().isEmpty();
         }
-        while (true)
-        {
-            fields.addAll(Arrays.asList(workingClass.getDeclaredFields()));
-            if (Objects.equals(RpgSystemOptions.class, workingClass))
-            {
-                break;
-            }
-            workingClass = workingClass.getSuperclass();
-        }
-        for (Field field : fields) 
-        {
-            field.setAccessible(true);
-            if (field.isAnnotationPresent(RpgSystemOption.class)) {
-                RpgSystemOption[] annotations = field.getAnnotationsByType(RpgSystemOption.class);
-
-                for(RpgSystemOption annotation : annotations){
-                    
-                    String optName = null;
-                    if (!annotation.name().isEmpty())
-                    {
-                        optName = annotation.name();
-                    }
-                    if ((optName == null) && (!annotation.shortcode().isEmpty()))
-                    {
-                        optName = annotation.shortcode();
-                    }
-                    if (optName != null)
-                    {
-                        Object opt = null;
-                        Class c = field.getType();
-                        if (
-                            java.lang.Boolean.class.isAssignableFrom(c) || 
-                            java.lang.Boolean.TYPE.isAssignableFrom(c)
-                            )
-                        {
-                            if (subcom)
-                            {
-                                opt = SystemHelper.parseBooleanSubOption(interaction, optName);
-                            }
-                            else
-                            {
-                                opt = SystemHelper.parseBooleanOption(interaction, optName);
-                            }
-                        }
-                        else if (
-                                java.lang.Number.class.isAssignableFrom(c) || 
-                                java.lang.Short.TYPE.isAssignableFrom(c) || 
-                                java.lang.Integer.TYPE.isAssignableFrom(c) || 
-                                java.lang.Long.TYPE.isAssignableFrom(c) || 
-                                java.lang.Float.TYPE.isAssignableFrom(c) || 
-                                java.lang.Double.TYPE.isAssignableFrom(c)
-                                )
-                        {
-                            if (subcom)
-                            {
-                                opt = SystemHelper.parseIntegerSubOption(interaction, optName);
-                            }
-                            else
-                            {
-                                opt = SystemHelper.parseIntegerOption(interaction, optName);
-                            }
-                        }
-                        else if (
-                                java.util.Collection.class.isAssignableFrom(c)
-                                )
-                        {
-                            if (subcom)
-                            {
-                                opt = SystemHelper.parseListSubOption(interaction, optName);
-                            }
-                            else
-                            {
-                                opt = SystemHelper.parseListOption(interaction, optName);
-                            }
-                        }
-                        else
-                        {
-                            if (subcom)
-                            {
-                                opt = SystemHelper.parseStringSubOption(interaction, optName);
-                            }
-                            else
-                            {
-                                opt = SystemHelper.parseStringOption(interaction, optName);
-                            }
-                        }
-                        if (opt != null)
-                        {
-                            try
-                            {
-                                field.set(options, opt);
-                            } catch (IllegalArgumentException | IllegalAccessException ex)
-                            {
-                                LOGGER.error(null, ex);
-                            }
-                        }
-                    }
-                }
-            }
-        }
+        binder.bind(options, interaction);
         if (forceHelp)
         {
             options.setHelp(true);
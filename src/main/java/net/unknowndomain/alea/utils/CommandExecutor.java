@@ -0,0 +1,247 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the bot commands away from the Javacord listener threads.
+ *
+ * The number of accepted tasks not yet completed is bounded: once the limit
+ * is reached new tasks are rejected, instead of piling up behind a slow
+ * system. The tasks run either on a fixed pool of platform threads or, on
+ * Java 21 and later, each on its own virtual thread.
+ *
+ * The queue depth and the execution times are logged every few minutes.
+ *
+ * @author journeyman
+ */
+public class CommandExecutor implements AutoCloseable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandExecutor.class);
+    public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_QUEUE = 256;
+    public static final String REJECTED_MESSAGE = "Too many pending commands, please retry later";
+    private static final long SHUTDOWN_TIMEOUT = 10L;
+    private static final long METRICS_INTERVAL = 5L;
+    
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder executionTime = new LongAdder();
+    private final AtomicLong maxExecutionTime = new AtomicLong();
+    private final ScheduledExecutorService metricsLogger;
+    
+    private CommandExecutor(ExecutorService executor, int maxPending)
+    {
+        this.executor = executor;
+        this.maxPending = maxPending;
+        this.metricsLogger = Executors.newSingleThreadScheduledExecutor(VirtualThreads.threadFactory("command-metrics"));
+        metricsLogger.scheduleWithFixedDelay(this::logMetrics, METRICS_INTERVAL, METRICS_INTERVAL, TimeUnit.MINUTES);
+    }
+    
+    /**
+     * Builds an executor backed by a fixed pool of platform threads.
+     *
+     * @param threads the pool size
+     * @param queueSize how many tasks can wait for a free thread
+     * @return the executor
+     */
+    public static CommandExecutor fixed(int threads, int queueSize)
+    {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, "alea-command-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ExecutorService pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), factory);
+        LOGGER.info("Commands run on {} threads, at most {} queued", threads, queueSize);
+        return new CommandExecutor(pool, threads + queueSize);
+    }
+    
+    /**
+     * Builds an executor running each task on a new virtual thread, falling
+     * back to a fixed pool when virtual threads are not available.
+     *
+     * @param threads the pool size, if falling back
+     * @param queueSize how many tasks can be running or waiting at once
+     * @return the executor
+     */
+    public static CommandExecutor virtual(int threads, int queueSize)
+    {
+        ExecutorService executor = VirtualThreads.newPerTaskExecutor();
+        if (executor == null)
+        {
+            LOGGER.warn("Virtual threads not available on Java {}", System.getProperty("java.version"));
+            return fixed(threads, queueSize);
+        }
+        LOGGER.info("Commands run on virtual threads, at most {} pending", queueSize);
+        return new CommandExecutor(executor, queueSize);
+    }
+    
+    /**
+     * Submits a task.
+     *
+     * @param task the task
+     * @return false if the task was rejected
+     */
+    public boolean execute(Runnable task)
+    {
+        int current;
+        do
+        {
+            current = pending.get();
+            if (current >= maxPending)
+            {
+                rejected.increment();
+                LOGGER.warn("Command rejected, {} pending", current);
+                return false;
+            }
+        }
+        while (!pending.compareAndSet(current, current + 1));
+        try
+        {
+            executor.execute(() -> run(task));
+            return true;
+        }
+        catch (RejectedExecutionException ex)
+        {
+            pending.decrementAndGet();
+            rejected.increment();
+            LOGGER.warn("Command rejected, executor shut down");
+            return false;
+        }
+    }
+    
+    private void run(Runnable task)
+    {
+        running.incrementAndGet();
+        long start = System.nanoTime();
+        try
+        {
+            task.run();
+        }
+        catch (RuntimeException ex)
+        {
+            LOGGER.error(null, ex);
+        }
+        finally
+        {
+            long elapsed = System.nanoTime() - start;
+            executionTime.add(elapsed);
+            maxExecutionTime.accumulateAndGet(elapsed, Math::max);
+            executed.increment();
+            running.decrementAndGet();
+            pending.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Gets the number of tasks accepted but not started yet.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth()
+    {
+        return Math.max(0, pending.get() - running.get());
+    }
+    
+    public int getRunning()
+    {
+        return running.get();
+    }
+    
+    public long getExecuted()
+    {
+        return executed.sum();
+    }
+    
+    public long getRejected()
+    {
+        return rejected.sum();
+    }
+    
+    /**
+     * Gets the mean execution time of the completed tasks.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getMeanExecutionTime()
+    {
+        long count = executed.sum();
+        return (count > 0) ? (executionTime.sum() / count) : 0L;
+    }
+    
+    /**
+     * Gets the longest execution time of the completed tasks.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getMaxExecutionTime()
+    {
+        return maxExecutionTime.get();
+    }
+    
+    private void logMetrics()
+    {
+        LOGGER.info(
+                "Commands: {} queued, {} running, {} executed, {} rejected: mean {} ms, max {} ms",
+                getQueueDepth(),
+                getRunning(),
+                getExecuted(),
+                getRejected(),
+                TimeUnit.NANOSECONDS.toMillis(getMeanExecutionTime()),
+                TimeUnit.NANOSECONDS.toMillis(getMaxExecutionTime())
+        );
+    }
+    
+    @Override
+    public void close()
+    {
+        executor.shutdown();
+        try
+        {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS))
+            {
+                executor.shutdownNow();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        metricsLogger.shutdown();
+        logMetrics();
+    }
+    
+}
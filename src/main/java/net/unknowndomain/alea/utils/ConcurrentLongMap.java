@@ -0,0 +1,384 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.utils;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent hash map with primitive <code>long</code> keys.
+ *
+ * Keys and values live in two parallel arrays with open addressing and
+ * linear probing, so an entry costs no node and no boxed key. Reads never
+ * lock; writes are serialized on the map, which suits maps read far more
+ * often than written. A removed entry keeps its key slot with a null value
+ * until the next resize, so that concurrent probes are never cut short.
+ *
+ * The {@link Map} methods are provided for compatibility and box the keys;
+ * the primitive overloads should be preferred on hot paths. Iteration is
+ * weakly consistent. Null values are not allowed.
+ *
+ * @author journeyman
+ * @param <V> the value type
+ */
+public class ConcurrentLongMap<V> extends AbstractMap<Long, V>
+{
+    private static final long EMPTY = 0L;
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Receives the entries of the map.
+     *
+     * @param <V> the value type
+     */
+    public interface EntryConsumer<V>
+    {
+        void accept(long key, V value);
+    }
+
+    private static final class Table
+    {
+        private final AtomicLongArray keys;
+        private final AtomicReferenceArray<Object> values;
+        private final int mask;
+
+        private Table(int capacity)
+        {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table;
+    /**
+     * The value of the key 0, which marks the empty slots in the table.
+     */
+    private volatile Object zeroValue;
+    private volatile int size;
+    private int usedSlots;
+
+    public ConcurrentLongMap()
+    {
+        this(MIN_CAPACITY);
+    }
+
+    public ConcurrentLongMap(int expectedSize)
+    {
+        table = new Table(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int entries)
+    {
+        int capacity = MIN_CAPACITY;
+        while (capacity < entries * 2)
+        {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        if (key == EMPTY)
+        {
+            return (V) zeroValue;
+        }
+        Table t = table;
+        for (int idx = hash(key) & t.mask; ; idx = (idx + 1) & t.mask)
+        {
+            long k = t.keys.get(idx);
+            if (k == key)
+            {
+                return (V) t.values.get(idx);
+            }
+            if (k == EMPTY)
+            {
+                return null;
+            }
+        }
+    }
+
+    public boolean containsKey(long key)
+    {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V put(long key, V value)
+    {
+        Objects.requireNonNull(value);
+        if (key == EMPTY)
+        {
+            V old = (V) zeroValue;
+            zeroValue = value;
+            if (old == null)
+            {
+                size++;
+            }
+            return old;
+        }
+        Table t = table;
+        int idx = hash(key) & t.mask;
+        while (true)
+        {
+            long k = t.keys.get(idx);
+            if (k == key)
+            {
+                V old = (V) t.values.getAndSet(idx, value);
+                if (old == null)
+                {
+                    size++;
+                }
+                return old;
+            }
+            if (k == EMPTY)
+            {
+                break;
+            }
+            idx = (idx + 1) & t.mask;
+        }
+        // value first: a reader finding the key always finds its value
+        t.values.set(idx, value);
+        t.keys.set(idx, key);
+        size++;
+        usedSlots++;
+        if (usedSlots * 2 > t.mask + 1)
+        {
+            resize();
+        }
+        return null;
+    }
+
+    public synchronized V putIfAbsent(long key, V value)
+    {
+        V old = get(key);
+        return (old != null) ? old : put(key, value);
+    }
+
+    public synchronized V remove(long key)
+    {
+        return removeImpl(key);
+    }
+
+    /**
+     * Removes the entry only if it is mapped to the given value.
+     *
+     * @param key the key
+     * @param value the expected value
+     * @return true if the entry was removed
+     */
+    public synchronized boolean remove(long key, Object value)
+    {
+        return (value != null) && Objects.equals(get(key), value) && (removeImpl(key) != null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V removeImpl(long key)
+    {
+        if (key == EMPTY)
+        {
+            V old = (V) zeroValue;
+            zeroValue = null;
+            if (old != null)
+            {
+                size--;
+            }
+            return old;
+        }
+        Table t = table;
+        for (int idx = hash(key) & t.mask; ; idx = (idx + 1) & t.mask)
+        {
+            long k = t.keys.get(idx);
+            if (k == key)
+            {
+                V old = (V) t.values.getAndSet(idx, null);
+                if (old != null)
+                {
+                    size--;
+                }
+                return old;
+            }
+            if (k == EMPTY)
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the table without the removed entries, publishing it only
+     * once complete.
+     */
+    private void resize()
+    {
+        Table old = table;
+        Table t = new Table(capacityFor(Math.max(size, MIN_CAPACITY / 2) * 2));
+        int used = 0;
+        for (int i = 0; i <= old.mask; i++)
+        {
+            Object v = old.values.get(i);
+            long k = old.keys.get(i);
+            if ((v != null) && (k != EMPTY))
+            {
+                int idx = hash(k) & t.mask;
+                while (t.keys.get(idx) != EMPTY)
+                {
+                    idx = (idx + 1) & t.mask;
+                }
+                t.values.set(idx, v);
+                t.keys.set(idx, k);
+                used++;
+            }
+        }
+        usedSlots = used;
+        table = t;
+    }
+
+    /**
+     * Visits every entry of the map.
+     *
+     * @param consumer the entry consumer
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachEntry(EntryConsumer<? super V> consumer)
+    {
+        Object zero = zeroValue;
+        if (zero != null)
+        {
+            consumer.accept(EMPTY, (V) zero);
+        }
+        Table t = table;
+        for (int i = 0; i <= t.mask; i++)
+        {
+            long k = t.keys.get(i);
+            Object v = t.values.get(i);
+            if ((k != EMPTY) && (v != null))
+            {
+                consumer.accept(k, (V) v);
+            }
+        }
+    }
+
+    /**
+     * Copies the keys of the map.
+     *
+     * @return the keys
+     */
+    public synchronized long [] keys()
+    {
+        long [] retVal = new long[size];
+        int [] count = new int[1];
+        forEachEntry((k, v) -> retVal[count[0]++] = k);
+        return retVal;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        return (key instanceof Long) ? get(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return get(key) != null;
+    }
+
+    @Override
+    public V put(Long key, V value)
+    {
+        return put(key.longValue(), value);
+    }
+
+    @Override
+    public V putIfAbsent(Long key, V value)
+    {
+        return putIfAbsent(key.longValue(), value);
+    }
+
+    @Override
+    public V remove(Object key)
+    {
+        return (key instanceof Long) ? remove(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value)
+    {
+        return (key instanceof Long) && remove(((Long) key).longValue(), value);
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        table = new Table(MIN_CAPACITY);
+        zeroValue = null;
+        size = 0;
+        usedSlots = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<Long, V>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<Long, V>>()
+        {
+            @Override
+            public Iterator<Map.Entry<Long, V>> iterator()
+            {
+                List<Map.Entry<Long, V>> entries = new ArrayList<>(size);
+                forEachEntry((k, v) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(k, v)));
+                return entries.iterator();
+            }
+
+            @Override
+            public int size()
+            {
+                return ConcurrentLongMap.this.size;
+            }
+        };
+    }
+
+}
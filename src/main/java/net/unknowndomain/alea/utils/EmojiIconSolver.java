@@ -15,51 +15,52 @@
  */
 package net.unknowndomain.alea.utils;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
-import java.util.concurrent.TimeUnit;
-import javax.cache.Cache;
-import javax.cache.CacheManager;
-import javax.cache.Caching;
-import javax.cache.configuration.FactoryBuilder;
-import javax.cache.configuration.MutableConfiguration;
-import javax.cache.expiry.Duration;
-import javax.cache.expiry.ModifiedExpiryPolicy;
-import javax.cache.spi.CachingProvider;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import net.unknowndomain.alea.icon.AleaIcon;
 import org.javacord.api.DiscordApi;
 import org.javacord.api.entity.emoji.CustomEmoji;
+import org.javacord.api.entity.emoji.KnownCustomEmoji;
+import org.javacord.api.entity.server.Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * Resolves the {@link AleaIcon}s to the custom emojis known by the bot.
+ *
+ * A single index by name is shared by every shard: each shard adds its
+ * emojis when registered and keeps the index current through its emoji
+ * create, change name and delete events, and drops the emojis of the servers
+ * it leaves or loses. Names with no emoji are remembered too, until a server
+ * joined or available again brings an emoji with that name.
  *
  * @author journeyman
  */
 public class EmojiIconSolver
 {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmojiIconSolver.class);
     
-    private static EmojiIconSolver INSTANCE = null;
+    private static final EmojiIconSolver INSTANCE = new EmojiIconSolver();
     
-    private final Cache<String, CustomEmoji> iconCache;
+    private final Map<String, Optional<CustomEmoji>> iconIndex = new ConcurrentHashMap<>();
     
-    private final DiscordApi api;
+    private final List<DiscordApi> shards = new CopyOnWriteArrayList<>();
     
-    private EmojiIconSolver(DiscordApi api)
+    private EmojiIconSolver()
     {
-    
-        CachingProvider cachingProvider = Caching.getCachingProvider();
-        CacheManager cacheManager = cachingProvider.getCacheManager();
-        MutableConfiguration<String, CustomEmoji> config = new MutableConfiguration<>();
-        config.setExpiryPolicyFactory(FactoryBuilder.factoryOf(new ModifiedExpiryPolicy(new Duration( TimeUnit.MINUTES, 30 ))));
-        this.iconCache = cacheManager.createCache("EmojiIcon_" + UUID.randomUUID(), config);
-        this.api = api;
     }
     
-    public static synchronized void build(DiscordApi api)
+    /**
+     * Adds the emojis of a shard to the index and listens to their changes.
+     *
+     * @param api the shard
+     */
+    public static void register(DiscordApi api)
     {
-        if (INSTANCE == null)
-        {
-            INSTANCE = new EmojiIconSolver(api);
-        }
+        INSTANCE.addShard(api);
     }
     
     public static EmojiIconSolver getInstance()
@@ -67,24 +68,91 @@ public class EmojiIconSolver
         return INSTANCE;
     }
     
+    private void addShard(DiscordApi api)
+    {
+        shards.add(api);
+        int indexed = 0;
+        for (KnownCustomEmoji emoji : api.getCustomEmojis())
+        {
+            addEmoji(emoji);
+            indexed++;
+        }
+        LOGGER.info("Indexed {} custom emojis of shard {}", indexed, api.getCurrentShard());
+        api.addKnownCustomEmojiCreateListener(event -> addEmoji(event.getEmoji()));
+        api.addKnownCustomEmojiChangeNameListener(event -> {
+            removeEmoji(event.getOldName(), event.getEmoji().getId());
+            addEmoji(event.getEmoji());
+        });
+        api.addKnownCustomEmojiDeleteListener(event -> removeEmoji(event.getEmoji().getName(), event.getEmoji().getId()));
+        api.addServerJoinListener(event -> addServer(event.getServer()));
+        api.addServerBecomesAvailableListener(event -> addServer(event.getServer()));
+        api.addServerLeaveListener(event -> forgetServer(event.getServer().getId()));
+        api.addServerBecomesUnavailableListener(event -> forgetServer(event.getServer().getId()));
+    }
+    
     public Optional<CustomEmoji> solveIcon(AleaIcon icon)
     {
         String iconKey = icon.getNamespace() + "_" + icon.getIconId();
-        if (iconCache.containsKey(iconKey))
+        Optional<CustomEmoji> retVal = iconIndex.get(iconKey);
+        if (retVal == null)
         {
-            return Optional.ofNullable(iconCache.get(iconKey));
+            retVal = iconIndex.computeIfAbsent(iconKey, this::solveIconImpl);
         }
-        return solveIconImpl(iconKey);
+        return retVal;
     }
     
     private Optional<CustomEmoji> solveIconImpl(String iconKey)
     {
         Optional<CustomEmoji> retVal = Optional.empty();
-        for (CustomEmoji emoji : api.getCustomEmojisByName(iconKey))
+        for (DiscordApi api : shards)
         {
-            retVal = Optional.ofNullable(emoji);
+            for (CustomEmoji emoji : api.getCustomEmojisByName(iconKey))
+            {
+                retVal = Optional.ofNullable(emoji);
+            }
         }
         return retVal;
     }
     
+    private void addEmoji(KnownCustomEmoji emoji)
+    {
+        iconIndex.merge(emoji.getName(), Optional.of(emoji), (current, added) -> current.isPresent() ? current : added);
+    }
+    
+    /**
+     * Drops a name only if it is indexed to the given emoji: another server
+     * may have an emoji with the same name, solved again on the next use.
+     */
+    private void removeEmoji(String name, long emojiId)
+    {
+        iconIndex.computeIfPresent(name, (key, current) -> (current.isPresent() && (current.get().getId() == emojiId)) ? null : current);
+    }
+    
+    /**
+     * Adds the emojis of a server joined or available again, which were never
+     * announced by a create event; they replace the names remembered as
+     * missing.
+     */
+    private void addServer(Server server)
+    {
+        for (KnownCustomEmoji emoji : server.getCustomEmojis())
+        {
+            addEmoji(emoji);
+        }
+    }
+    
+    /**
+     * Drops the emojis of a server no longer reachable; their names are
+     * solved again on the next use, possibly by another server.
+     */
+    private void forgetServer(long serverId)
+    {
+        iconIndex.values().removeIf(emoji -> emoji.isPresent() && isFromServer(emoji.get(), serverId));
+    }
+    
+    private static boolean isFromServer(CustomEmoji emoji, long serverId)
+    {
+        return (emoji instanceof KnownCustomEmoji) && (((KnownCustomEmoji) emoji).getServer().getId() == serverId);
+    }
+    
 }
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.utils;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import net.unknowndomain.alea.icon.AleaIcon;
+import net.unknowndomain.alea.icon.IconSolver;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.javacord.api.entity.message.Message;
+import org.javacord.api.entity.message.MessageAttachment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the images of the icons with no custom emoji, so they are read only
+ * once, and the CDN url they got when uploaded, so they are uploaded again
+ * only when the url is about to expire.
+ *
+ * The icons of a reply can also be composited into a single PNG strip; the
+ * decoded icons and the strips of the recent icon combinations are cached
+ * as well.
+ *
+ * @author journeyman
+ */
+public class IconAttachmentCache
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(IconAttachmentCache.class);
+    private static final int CAPACITY = 256;
+    /**
+     * The decoded icons and the strips are bounded by size, as a few large
+     * images would otherwise fill the memory well before the entry count.
+     */
+    private static final long BITMAP_BYTES = 32L << 20;
+    private static final long COMPOSITE_BYTES = 16L << 20;
+    private static final IconAttachment MISSING = new IconAttachment(null, null, null);
+    private static final String COMPOSITE_FILE = "icons.png";
+    private static final String COMPOSITE_FORMAT = "png";
+    /**
+     * The attachment urls are signed by Discord and expire after about a
+     * day, so they are reused for a shorter time.
+     */
+    private static final long URL_LIFETIME = 12L;
+    
+    private static final IconAttachmentCache INSTANCE = new IconAttachmentCache();
+    
+    private final Cache<String, IconAttachment> iconCache;
+    private final Cache<String, String> urlCache;
+    private final Cache<String, BufferedImage> bitmapCache;
+    private final Cache<String, IconAttachment> compositeCache;
+    private volatile boolean compositeIcons = false;
+    
+    private IconAttachmentCache()
+    {
+        iconCache = Cache2kBuilder.of(String.class, IconAttachment.class)
+                .entryCapacity(CAPACITY)
+                .build();
+        urlCache = Cache2kBuilder.of(String.class, String.class)
+                .entryCapacity(CAPACITY)
+                .expireAfterWrite(URL_LIFETIME, TimeUnit.HOURS)
+                .build();
+        bitmapCache = Cache2kBuilder.of(String.class, BufferedImage.class)
+                .weigher((key, bitmap) -> bitmap.getWidth() * bitmap.getHeight() * 4)
+                .maximumWeight(BITMAP_BYTES)
+                .build();
+        compositeCache = Cache2kBuilder.of(String.class, IconAttachment.class)
+                .weigher((key, strip) -> (strip.getData() != null) ? strip.getData().length : 1)
+                .maximumWeight(COMPOSITE_BYTES)
+                .build();
+    }
+    
+    public static IconAttachmentCache getInstance()
+    {
+        return INSTANCE;
+    }
+    
+    public static String iconKey(AleaIcon icon)
+    {
+        return icon.getNamespace() + "_" + icon.getIconId();
+    }
+    
+    public boolean isCompositeIcons()
+    {
+        return compositeIcons;
+    }
+    
+    public void setCompositeIcons(boolean compositeIcons)
+    {
+        this.compositeIcons = compositeIcons;
+    }
+    
+    public Optional<IconAttachment> solveIcon(AleaIcon icon)
+    {
+        IconAttachment retVal = loadIcon(icon, iconKey(icon));
+        return (retVal == MISSING) ? Optional.empty() : Optional.of(retVal);
+    }
+    
+    private IconAttachment loadIcon(AleaIcon icon, String iconKey)
+    {
+        IconAttachment retVal = iconCache.peek(iconKey);
+        if (retVal == null)
+        {
+            retVal = IconSolver.loadIcon(icon).map(
+                    image -> new IconAttachment(iconKey, image.getFileName(), image.getData())
+            ).orElse(MISSING);
+            iconCache.put(iconKey, retVal);
+        }
+        return retVal;
+    }
+    
+    /**
+     * Gets the CDN url of an image uploaded recently.
+     *
+     * @param image the image
+     * @return the url, or null if the image must be uploaded
+     */
+    public String getUrl(IconAttachment image)
+    {
+        return urlCache.peek(image.getKey());
+    }
+    
+    /**
+     * Composites a sequence of icons into a single horizontal strip.
+     *
+     * @param icons the icons, in order
+     * @return the strip, or empty if none of the icons can be loaded
+     */
+    public Optional<IconAttachment> solveComposite(List<AleaIcon> icons)
+    {
+        StringJoiner joiner = new StringJoiner("|");
+        for (AleaIcon icon : icons)
+        {
+            joiner.add(iconKey(icon));
+        }
+        String compositeKey = joiner.toString();
+        IconAttachment retVal = compositeCache.peek(compositeKey);
+        if (retVal == null)
+        {
+            retVal = renderComposite(compositeKey, icons);
+            compositeCache.put(compositeKey, retVal);
+        }
+        return (retVal == MISSING) ? Optional.empty() : Optional.of(retVal);
+    }
+    
+    private IconAttachment renderComposite(String compositeKey, List<AleaIcon> icons)
+    {
+        List<BufferedImage> bitmaps = new ArrayList<>(icons.size());
+        int width = 0;
+        int height = 0;
+        for (AleaIcon icon : icons)
+        {
+            BufferedImage bitmap = loadBitmap(icon);
+            if (bitmap != null)
+            {
+                bitmaps.add(bitmap);
+                width += bitmap.getWidth();
+                height = Math.max(height, bitmap.getHeight());
+            }
+        }
+        if (bitmaps.isEmpty())
+        {
+            return MISSING;
+        }
+        BufferedImage strip = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = strip.createGraphics();
+        try
+        {
+            int x = 0;
+            for (BufferedImage bitmap : bitmaps)
+            {
+                g.drawImage(bitmap, x, (height - bitmap.getHeight()) / 2, null);
+                x += bitmap.getWidth();
+            }
+        }
+        finally
+        {
+            g.dispose();
+        }
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(strip, COMPOSITE_FORMAT, out);
+            return new IconAttachment(compositeKey, COMPOSITE_FILE, out.toByteArray());
+        }
+        catch (IOException ex)
+        {
+            LOGGER.error(null, ex);
+            return MISSING;
+        }
+    }
+    
+    private BufferedImage loadBitmap(AleaIcon icon)
+    {
+        String iconKey = iconKey(icon);
+        BufferedImage retVal = bitmapCache.peek(iconKey);
+        if (retVal == null)
+        {
+            IconAttachment image = loadIcon(icon, iconKey);
+            if (image == MISSING)
+            {
+                return null;
+            }
+            try
+            {
+                retVal = ImageIO.read(new ByteArrayInputStream(image.getData()));
+            }
+            catch (IOException ex)
+            {
+                LOGGER.error(null, ex);
+            }
+            if (retVal != null)
+            {
+                bitmapCache.put(iconKey, retVal);
+            }
+        }
+        return retVal;
+    }
+    
+    /**
+     * Remembers the url of the images uploaded with a message, so the next
+     * messages can link them instead of uploading them again.
+     *
+     * @param message the message sent
+     * @param uploads the images attached to the message
+     */
+    public void recordUploads(Message message, PendingUploads uploads)
+    {
+        if (uploads.isEmpty())
+        {
+            return;
+        }
+        // different icons can share a file name, their attachments keep the upload order
+        Map<String, Deque<MessageAttachment>> byName = new HashMap<>();
+        for (MessageAttachment attachment : message.getAttachments())
+        {
+            byName.computeIfAbsent(attachment.getFileName(), name -> new ArrayDeque<>()).add(attachment);
+        }
+        for (Map.Entry<String, String> upload : uploads.fileNames.entrySet())
+        {
+            Deque<MessageAttachment> attachments = byName.get(upload.getValue());
+            MessageAttachment attachment = (attachments != null) ? attachments.poll() : null;
+            if (attachment != null)
+            {
+                urlCache.put(upload.getKey(), attachment.getUrl().toString());
+            }
+        }
+    }
+    
+    public static class IconAttachment
+    {
+        private final String key;
+        private final String fileName;
+        private final byte [] data;
+        
+        private IconAttachment(String key, String fileName, byte [] data)
+        {
+            this.key = key;
+            this.fileName = fileName;
+            this.data = data;
+        }
+
+        /**
+         * Gets the key of the icon, or of the icon sequence of a composite.
+         *
+         * @return the key
+         */
+        public String getKey()
+        {
+            return key;
+        }
+
+        public String getFileName()
+        {
+            return fileName;
+        }
+
+        public byte [] getData()
+        {
+            return data;
+        }
+    }
+    
+    /**
+     * The images attached to a single message: the file names by icon key,
+     * in upload order.
+     */
+    public static class PendingUploads
+    {
+        private final Map<String, String> fileNames = new LinkedHashMap<>();
+        
+        /**
+         * Adds an image to the message.
+         *
+         * @param image the image
+         * @return false if the image is already attached to the message
+         */
+        public boolean add(IconAttachment image)
+        {
+            return fileNames.putIfAbsent(image.getKey(), image.getFileName()) == null;
+        }
+        
+        public boolean isEmpty()
+        {
+            return fileNames.isEmpty();
+        }
+    }
+    
+}
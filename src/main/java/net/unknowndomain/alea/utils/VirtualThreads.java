@@ -0,0 +1,144 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the background threads of the bot, as virtual threads when the
+ * virtual thread mode is enabled and the JVM supports them (Java 21 and
+ * later), as daemon platform threads otherwise.
+ *
+ * The virtual thread API is reached by reflection, so the bot still builds
+ * and runs on Java 11.
+ *
+ * @author journeyman
+ */
+public final class VirtualThreads
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+    
+    private static volatile boolean enabled = false;
+    
+    private VirtualThreads()
+    {
+    }
+    
+    /**
+     * Enables the virtual thread mode, if the JVM supports it.
+     *
+     * @param enable true to use virtual threads
+     * @return true if virtual threads are in use
+     */
+    public static boolean setEnabled(boolean enable)
+    {
+        if (enable && !isSupported())
+        {
+            LOGGER.warn("Virtual threads not available on Java {}", System.getProperty("java.version"));
+            enable = false;
+        }
+        enabled = enable;
+        return enable;
+    }
+    
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+    
+    /**
+     * Checks whether the JVM supports virtual threads by starting one: Java
+     * 19 and 20 have the API but refuse it without --enable-preview.
+     *
+     * @return true if a virtual thread could be started
+     */
+    public static boolean isSupported()
+    {
+        try
+        {
+            Runnable probe = () -> {};
+            Thread thread = (Thread) Thread.class.getMethod("startVirtualThread", Runnable.class).invoke(null, probe);
+            thread.join();
+            return true;
+        }
+        catch (InterruptedException ex)
+        {
+            // the thread did start
+            Thread.currentThread().interrupt();
+            return true;
+        }
+        catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            return false;
+        }
+    }
+    
+    /**
+     * Builds a factory of named threads: virtual threads in the virtual
+     * thread mode, daemon platform threads otherwise.
+     *
+     * @param name the thread name prefix
+     * @return the factory
+     */
+    public static ThreadFactory threadFactory(String name)
+    {
+        if (enabled)
+        {
+            try
+            {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            }
+            catch (ReflectiveOperationException ex)
+            {
+                LOGGER.error(null, ex);
+            }
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    /**
+     * Builds an executor starting a new virtual thread for each task.
+     *
+     * @return the executor, or null if virtual threads are not available
+     */
+    public static ExecutorService newPerTaskExecutor()
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            return null;
+        }
+    }
+    
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea;
+
+import net.unknowndomain.alea.settings.SettingsBackend;
+import org.apache.commons.cli.ParseException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author journeyman
+ */
+public class AleaConfigParserTest
+{
+    private static AleaConfig parse(String option, String value) throws ParseException
+    {
+        return AleaConfigParser.parseConfig("-d", "token", "-s", "settings", "--" + option, value);
+    }
+
+    private static void assertRejected(String option, String value, String hint)
+    {
+        ParseException ex = assertThrows(ParseException.class, () -> parse(option, value), option + "=" + value);
+        assertTrue(ex.getMessage().contains("--" + option), ex.getMessage());
+        assertTrue(ex.getMessage().contains(hint), ex.getMessage());
+    }
+
+    @Test
+    public void testValidValues() throws ParseException
+    {
+        assertEquals(0L, parse("settingsFlushInterval", "0").getSettingsFlushInterval());
+        assertEquals(500L, parse("settingsCacheSize", "500").getSettingsCacheSize());
+        assertEquals(SettingsBackend.MVSTORE, parse("settingsBackend", "mvstore").getSettingsBackend());
+        assertEquals(8, parse("commandThreads", "8").getCommandThreads());
+    }
+
+    @Test
+    public void testInvalidNumbers()
+    {
+        assertRejected("settingsFlushInterval", "soon", "from 0");
+        assertRejected("settingsFlushInterval", "-1", "from 0");
+        assertRejected("settingsCacheSize", "-5", "from 0");
+        assertRejected("settingsCacheIdle", "0", "from 1");
+        assertRejected("commandThreads", "0", "from 1");
+        assertRejected("commandQueue", "-3", "from 1");
+        assertRejected("commandQueue", "3000000000", "to " + Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testInvalidEnums()
+    {
+        assertRejected("settingsBackend", "sqlite", "files|journal|mvstore");
+        assertRejected("settingsFormat", "xml", "json|binary");
+    }
+
+}
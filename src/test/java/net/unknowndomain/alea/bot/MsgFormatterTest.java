@@ -0,0 +1,169 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.bot;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import net.unknowndomain.alea.messages.MsgBuilder;
+import net.unknowndomain.alea.messages.MsgStyle;
+import net.unknowndomain.alea.messages.ReturnMsg;
+import org.javacord.api.entity.message.MessageBuilder;
+import org.javacord.api.entity.message.MessageDecoration;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ *
+ * @author journeyman
+ */
+public class MsgFormatterTest
+{
+    private static final String TEXT = "1d20 => 17";
+    
+    /**
+     * The styles in the order the formatter always checked them, with the
+     * code block last so it stays innermost.
+     */
+    private static final MsgStyle [] STYLES = {
+        MsgStyle.BOLD,
+        MsgStyle.ITALIC,
+        MsgStyle.UNDERLINE,
+        MsgStyle.STRIKETHRU,
+        MsgStyle.SPOILER,
+        MsgStyle.CODE
+    };
+    private static final MessageDecoration [] STYLE_DECORATIONS = {
+        MessageDecoration.BOLD,
+        MessageDecoration.ITALICS,
+        MessageDecoration.UNDERLINE,
+        MessageDecoration.STRIKEOUT,
+        MessageDecoration.SPOILER,
+        MessageDecoration.CODE_SIMPLE
+    };
+
+    private static String render(ReturnMsg msg)
+    {
+        return MsgFormatter.formatMessage(msg).getStringBuilder().toString();
+    }
+
+    private static String expected(String text, MessageDecoration ... decorations)
+    {
+        return new MessageBuilder().append(text, decorations).getStringBuilder().toString();
+    }
+
+    private static String decorate(String text, MsgStyle ... styles)
+    {
+        EnumSet<MsgStyle> set = EnumSet.noneOf(MsgStyle.class);
+        for (MsgStyle style : styles)
+        {
+            set.add(style);
+        }
+        return new MessageBuilder().append(text, MsgFormatter.decorations(set, text)).getStringBuilder().toString();
+    }
+    
+    private static void assertStyle(MsgStyle style, MessageDecoration decoration)
+    {
+        assertEquals(expected(TEXT, decoration), render(new MsgBuilder().append(TEXT, style).build()), String.valueOf(style));
+    }
+
+    @Test
+    public void testPlainText()
+    {
+        assertEquals(expected(TEXT), render(new MsgBuilder().append(TEXT).build()));
+    }
+
+    @Test
+    public void testSingleStyles()
+    {
+        assertStyle(MsgStyle.BOLD, MessageDecoration.BOLD);
+        assertStyle(MsgStyle.ITALIC, MessageDecoration.ITALICS);
+        assertStyle(MsgStyle.UNDERLINE, MessageDecoration.UNDERLINE);
+        assertStyle(MsgStyle.STRIKETHRU, MessageDecoration.STRIKEOUT);
+        assertStyle(MsgStyle.SPOILER, MessageDecoration.SPOILER);
+        assertStyle(MsgStyle.CODE, MessageDecoration.CODE_SIMPLE);
+    }
+
+    @Test
+    public void testLongCode()
+    {
+        String multiLine = "first\nsecond";
+        assertEquals(expected(multiLine, MessageDecoration.CODE_LONG), render(new MsgBuilder().append(multiLine, MsgStyle.CODE).build()));
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() <= 120)
+        {
+            sb.append(TEXT).append(' ');
+        }
+        String longLine = sb.toString();
+        assertEquals(expected(longLine, MessageDecoration.CODE_LONG), render(new MsgBuilder().append(longLine, MsgStyle.CODE).build()));
+    }
+
+    @Test
+    public void testManyParts()
+    {
+        MsgBuilder builder = new MsgBuilder();
+        MessageBuilder expected = new MessageBuilder();
+        for (int i = 0; i < 500; i++)
+        {
+            String text = "roll " + i + " ";
+            if ((i % 2) == 0)
+            {
+                builder.append(text, MsgStyle.BOLD);
+                expected.append(text, MessageDecoration.BOLD);
+            }
+            else
+            {
+                builder.append(text);
+                expected.append(text);
+            }
+        }
+        assertEquals(expected.getStringBuilder().toString(), render(builder.build()));
+    }
+    
+    @Test
+    public void testCombinedStyles()
+    {
+        assertEquals("***`" + TEXT + "`***", decorate(TEXT, MsgStyle.BOLD, MsgStyle.ITALIC, MsgStyle.CODE));
+        assertEquals("__||`" + TEXT + "`||__", decorate(TEXT, MsgStyle.CODE, MsgStyle.SPOILER, MsgStyle.UNDERLINE));
+        assertEquals("**~~" + TEXT + "~~**", decorate(TEXT, MsgStyle.STRIKETHRU, MsgStyle.BOLD));
+        assertEquals("*```first\nsecond```*", decorate("first\nsecond", MsgStyle.ITALIC, MsgStyle.CODE));
+    }
+    
+    @Test
+    public void testEveryStyleMask()
+    {
+        for (int mask = 0; mask < (1 << STYLES.length); mask++)
+        {
+            EnumSet<MsgStyle> styles = EnumSet.noneOf(MsgStyle.class);
+            List<MessageDecoration> nesting = new ArrayList<>();
+            for (int bit = 0; bit < STYLES.length; bit++)
+            {
+                if ((mask & (1 << bit)) != 0)
+                {
+                    styles.add(STYLES[bit]);
+                    nesting.add(STYLE_DECORATIONS[bit]);
+                }
+            }
+            MessageDecoration [] decorations = MsgFormatter.decorations(styles, TEXT);
+            assertEquals(expected(TEXT, nesting.toArray(new MessageDecoration[0])), new MessageBuilder().append(TEXT, decorations).getStringBuilder().toString(), styles.toString());
+            // the table is shared, not rebuilt per part
+            assertSame(decorations, MsgFormatter.decorations(EnumSet.copyOf(styles), TEXT), styles.toString());
+        }
+    }
+
+}
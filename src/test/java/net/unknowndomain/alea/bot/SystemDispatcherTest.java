@@ -0,0 +1,90 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.bot;
+
+import java.util.Map;
+import java.util.UUID;
+import net.unknowndomain.alea.systems.RpgSystemCommand;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+/**
+ *
+ * @author journeyman
+ */
+public class SystemDispatcherTest
+{
+    private static final CommandRegistry REGISTRY = CommandRegistry.build();
+
+    private static SystemDispatcher newDispatcher()
+    {
+        // the settings and the executor are only used once a command runs
+        return new SystemDispatcher(REGISTRY, null, null, UUID.randomUUID());
+    }
+
+    @Test
+    public void testRejectsNonCommands()
+    {
+        SystemDispatcher dispatcher = newDispatcher();
+        assertNull(dispatcher.route(""));
+        assertNull(dispatcher.route("!"));
+        assertNull(dispatcher.route("hello there"));
+        assertNull(dispatcher.route(" !alea"));
+        assertNull(dispatcher.route("!not-an-installed-system 1d6"));
+    }
+
+    @Test
+    public void testFirstToken()
+    {
+        assertEquals("d20", CommandRegistry.firstToken("d20"));
+        assertEquals("d20", CommandRegistry.firstToken("d20 1d6"));
+        assertEquals("d20", CommandRegistry.firstToken("d20\n1d6"));
+        assertEquals("d20", CommandRegistry.firstToken("d20\t1d6"));
+        assertEquals("", CommandRegistry.firstToken(" d20"));
+    }
+
+    @Test
+    public void testRoutesEveryToken()
+    {
+        Map<String, RpgSystemCommand> tokens = REGISTRY.getTokenIndex();
+        assumeFalse(tokens.isEmpty(), "no RPG system on the test classpath");
+        SystemDispatcher dispatcher = newDispatcher();
+        for (Map.Entry<String, RpgSystemCommand> entry : tokens.entrySet())
+        {
+            String token = entry.getKey();
+            SystemListener bare = dispatcher.route("!" + token);
+            assertNotNull(bare, token);
+            assertSame(entry.getValue(), bare.getSystem(), token);
+            SystemListener withParams = dispatcher.route("!" + token + " 1 2 3");
+            assertSame(bare, withParams, token);
+            assertSame(bare, dispatcher.route("!" + token + "\n1 2 3"), token);
+            assertSame(bare, dispatcher.route("!" + token + "\t1 2 3"), token);
+            if (!tokens.containsKey(token + "x"))
+            {
+                // the token must match as a whole word, unless the system pattern accepts it
+                SystemListener longer = dispatcher.route("!" + token + "x");
+                assertTrue((longer == null) || REGISTRY.matchSystem(longer.getSystem(), token + "x").isPresent(), token);
+            }
+        }
+    }
+
+}
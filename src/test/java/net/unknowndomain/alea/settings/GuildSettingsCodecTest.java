@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.settings;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * @author journeyman
+ */
+public class GuildSettingsCodecTest
+{
+    private static final long [] VARINT_BOUNDARIES = {
+        0L, 1L, 127L, 128L, 16383L, 16384L, 2097151L, 2097152L,
+        Integer.MAX_VALUE, 1L << 35, 1L << 56, Long.MAX_VALUE, -1L
+    };
+
+    @TempDir
+    Path tempDir;
+
+    private GuildSettingsCodec newCodec() throws IOException
+    {
+        return new GuildSettingsCodec(tempDir.resolve(GuildSettingsCodec.SYSTEMS_FILE));
+    }
+
+    private static void assertSameSettings(GuildSettings expected, GuildSettings actual)
+    {
+        assertEquals(expected.getLanguage(), actual.getLanguage());
+        Map<String, SystemSettings> expectedSystems = expected.getSystems();
+        Map<String, SystemSettings> actualSystems = actual.getSystems();
+        assertEquals(expectedSystems.keySet(), actualSystems.keySet());
+        for (Map.Entry<String, SystemSettings> entry : expectedSystems.entrySet())
+        {
+            SystemSettings ss = actualSystems.get(entry.getKey());
+            assertEquals(entry.getValue().isEnabled(), ss.isEnabled(), entry.getKey());
+            assertEquals(entry.getValue().getCommandId(), ss.getCommandId(), entry.getKey());
+        }
+    }
+
+    @Test
+    public void testVarintBoundaries() throws IOException
+    {
+        GuildSettingsCodec codec = newCodec();
+        Map<String, SystemSettings> systems = new HashMap<>();
+        for (int i = 0; i < VARINT_BOUNDARIES.length; i++)
+        {
+            systems.put("codec-varint-" + i, new SystemSettings((i % 2) == 0, VARINT_BOUNDARIES[i]));
+        }
+        GuildSettings settings = new GuildSettings(Locale.ITALIAN, systems);
+        assertSameSettings(settings, codec.decode(codec.encode(settings)));
+    }
+
+    @Test
+    public void testEmptyLanguage() throws IOException
+    {
+        GuildSettingsCodec codec = newCodec();
+        Map<String, SystemSettings> systems = new HashMap<>();
+        systems.put("codec-lang", new SystemSettings(true, null));
+        GuildSettings decoded = codec.decode(codec.encode(new GuildSettings(null, systems)));
+        assertEquals(Locale.ENGLISH, decoded.getLanguage());
+        assertNotNull(decoded.getSystem("codec-lang"));
+    }
+
+    @Test
+    public void testSparseCommandIds() throws IOException
+    {
+        GuildSettingsCodec codec = newCodec();
+        Map<String, SystemSettings> systems = new HashMap<>();
+        // more than a byte of bitset, with only a few command ids
+        for (int i = 0; i < 20; i++)
+        {
+            Long commandId = ((i % 7) == 3) ? Long.valueOf(900000000000000000L + i) : null;
+            systems.put("codec-sparse-" + i, new SystemSettings((i % 3) != 0, commandId));
+        }
+        GuildSettings settings = new GuildSettings(Locale.forLanguageTag("pt-BR"), systems);
+        assertSameSettings(settings, codec.decode(codec.encode(settings)));
+    }
+
+    @Test
+    public void testNoSystems() throws IOException
+    {
+        GuildSettingsCodec codec = newCodec();
+        GuildSettings settings = new GuildSettings(Locale.ENGLISH, new HashMap<>());
+        assertSameSettings(settings, codec.decode(codec.encode(settings)));
+    }
+
+    @Test
+    public void testTableReloaded() throws IOException
+    {
+        Map<String, SystemSettings> systems = new HashMap<>();
+        systems.put("codec-reload-a", new SystemSettings(true, 42L));
+        systems.put("codec-reload-b", new SystemSettings(false, null));
+        GuildSettings settings = new GuildSettings(Locale.GERMAN, systems);
+        byte [] data = newCodec().encode(settings);
+        // a new codec reads the positions back from the persisted table
+        assertSameSettings(settings, newCodec().decode(data));
+    }
+
+    @Test
+    public void testTruncatedData() throws IOException
+    {
+        GuildSettingsCodec codec = newCodec();
+        Map<String, SystemSettings> systems = new HashMap<>();
+        systems.put("codec-truncated", new SystemSettings(true, Long.MAX_VALUE));
+        byte [] data = codec.encode(new GuildSettings(Locale.FRENCH, systems));
+        assertThrows(IOException.class, () -> codec.decode(Arrays.copyOf(data, data.length - 1)));
+        assertThrows(IOException.class, () -> codec.decode(new byte[0]));
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.slash;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import net.unknowndomain.alea.bot.CommandRegistry;
+import net.unknowndomain.alea.systems.RpgSystemCommand;
+import net.unknowndomain.alea.systems.RpgSystemOptions;
+import net.unknowndomain.alea.systems.annotations.RpgSystemOption;
+import org.javacord.api.interaction.SlashCommandInteraction;
+import org.javacord.api.interaction.SlashCommandInteractionOption;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+/**
+ * Binds every installed system's options from a fake interaction answering
+ * the same values to every option, and checks each annotated field.
+ *
+ * @author journeyman
+ */
+public class OptionsBinderTest
+{
+    private static final long NUMBER = 3L;
+    private static final String TEXT = "a,b";
+
+    private static final SlashCommandInteractionOption VALUE = fake(SlashCommandInteractionOption.class, (proxy, method, args) -> {
+        switch (method.getName())
+        {
+            case "getBooleanValue":
+                return Optional.of(Boolean.TRUE);
+            case "getLongValue":
+                return Optional.of(NUMBER);
+            case "getStringValue":
+                return Optional.of(TEXT);
+            default:
+                return unsupported(proxy, method.getName(), args);
+        }
+    });
+
+    /**
+     * The sub command holding the options, for the systems with sub commands.
+     */
+    private static final SlashCommandInteractionOption SUB_COMMAND = fake(SlashCommandInteractionOption.class, container(null));
+
+    /**
+     * Answers the option lookups of both the interaction and the sub command.
+     */
+    private static InvocationHandler container(SlashCommandInteractionOption subCommand)
+    {
+        return (proxy, method, args) -> {
+            switch (method.getName())
+            {
+                case "getOptionByName":
+                    return Optional.of(VALUE);
+                case "getOptions":
+                    return Collections.singletonList((subCommand != null) ? subCommand : VALUE);
+                default:
+                    return unsupported(proxy, method.getName(), args);
+            }
+        };
+    }
+
+    private static <T> T fake(Class<T> type, InvocationHandler handler)
+    {
+        return type.cast(Proxy.newProxyInstance(OptionsBinderTest.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static Object unsupported(Object proxy, String name, Object [] args)
+    {
+        switch (name)
+        {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "fake";
+            default:
+                throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private static Object expectedValue(Class<?> type)
+    {
+        if (Boolean.class.equals(type) || Boolean.TYPE.equals(type))
+        {
+            return Boolean.TRUE;
+        }
+        if (Long.class.equals(type) || Long.TYPE.equals(type))
+        {
+            return NUMBER;
+        }
+        if (Short.class.equals(type) || Short.TYPE.equals(type))
+        {
+            return (short) NUMBER;
+        }
+        if (Float.class.equals(type) || Float.TYPE.equals(type))
+        {
+            return (float) NUMBER;
+        }
+        if (Double.class.equals(type) || Double.TYPE.equals(type))
+        {
+            return (double) NUMBER;
+        }
+        if (Integer.class.equals(type) || Integer.TYPE.equals(type))
+        {
+            return (int) NUMBER;
+        }
+        if (type.isAssignableFrom(LinkedList.class))
+        {
+            return Arrays.asList(TEXT.split(","));
+        }
+        if (type.isAssignableFrom(String.class))
+        {
+            return TEXT;
+        }
+        // not bindable from a slash option
+        return null;
+    }
+
+    private static boolean hasOptionName(Field field)
+    {
+        for (RpgSystemOption annotation : field.getAnnotationsByType(RpgSystemOption.class))
+        {
+            if (!annotation.name().isEmpty() || !annotation.shortcode().isEmpty())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testBindsEveryOption() throws IllegalAccessException
+    {
+        List<RpgSystemCommand> systems = CommandRegistry.build().getSystems();
+        assumeFalse(systems.isEmpty(), "no RPG system on the test classpath");
+        SlashCommandInteraction interaction = fake(SlashCommandInteraction.class, container(SUB_COMMAND));
+        for (RpgSystemCommand system : systems)
+        {
+            RpgSystemOptions options = system.buildOptions();
+            OptionsBinder.of(options.getClass()).bind(options, interaction);
+            for (Class<?> c = options.getClass(); c != null && !Objects.equals(Object.class, c); c = c.getSuperclass())
+            {
+                for (Field field : c.getDeclaredFields())
+                {
+                    if (!field.isAnnotationPresent(RpgSystemOption.class) || !hasOptionName(field))
+                    {
+                        continue;
+                    }
+                    Object expected = expectedValue(field.getType());
+                    if (expected == null)
+                    {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    String where = system.getCommandDesc().getCommand() + "." + field.getName();
+                    Object actual = field.get(options);
+                    if (expected instanceof List)
+                    {
+                        assertEquals(expected, (actual != null) ? Arrays.asList(((List<?>) actual).toArray()) : null, where);
+                    }
+                    else
+                    {
+                        assertEquals(expected, actual, where);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBinderIsCached()
+    {
+        List<RpgSystemCommand> systems = CommandRegistry.build().getSystems();
+        assumeFalse(systems.isEmpty(), "no RPG system on the test classpath");
+        Class<? extends RpgSystemOptions> optionsClass = systems.get(0).buildOptions().getClass();
+        assertSame(OptionsBinder.of(optionsClass), OptionsBinder.of(optionsClass));
+    }
+
+}
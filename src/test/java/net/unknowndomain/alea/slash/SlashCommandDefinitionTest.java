@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.slash;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.javacord.api.interaction.SlashCommandOption;
+import org.javacord.api.interaction.SlashCommandOptionBuilder;
+import org.javacord.api.interaction.SlashCommandOptionChoice;
+import org.javacord.api.interaction.SlashCommandOptionType;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ *
+ * @author journeyman
+ */
+public class SlashCommandDefinitionTest
+{
+    private static SlashCommandDefinition withChoice(String choiceValue)
+    {
+        SlashCommandOption option = new SlashCommandOptionBuilder()
+                .setType(SlashCommandOptionType.STRING)
+                .setName("system")
+                .setDescription("The RPG system")
+                .setRequired(true)
+                .setChoices(Arrays.asList(SlashCommandOptionChoice.create("d20", choiceValue)))
+                .build();
+        return new SlashCommandDefinition("cmd", "A command", Collections.singletonList(option));
+    }
+
+    private static SlashCommandDefinition withSubOption(String subOptionName)
+    {
+        SlashCommandOption option = SlashCommandOption.createWithOptions(SlashCommandOptionType.SUB_COMMAND, "roll", "Rolls the dice",
+                new SlashCommandOptionBuilder()
+                        .setType(SlashCommandOptionType.BOOLEAN)
+                        .setName(subOptionName)
+                        .setDescription("An option")
+                        .setRequired(false));
+        return new SlashCommandDefinition("cmd", "A command", Collections.singletonList(option));
+    }
+
+    @Test
+    public void testStableHash()
+    {
+        assertEquals(withChoice("d20").getHash(), withChoice("d20").getHash());
+        assertEquals(withSubOption("verbose").getHash(), withSubOption("verbose").getHash());
+    }
+
+    @Test
+    public void testChoiceValueChangesHash()
+    {
+        assertNotEquals(withChoice("d20").getHash(), withChoice("dnd5e").getHash());
+    }
+
+    @Test
+    public void testSubOptionChangesHash()
+    {
+        assertNotEquals(withSubOption("verbose").getHash(), withSubOption("quiet").getHash());
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2022 Marco Bignami.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unknowndomain.alea.utils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author journeyman
+ */
+public class ConcurrentLongMapTest
+{
+    private static final int THREADS = 8;
+    private static final int KEYS_PER_THREAD = 20000;
+    private static final int WINDOW = 2048;
+
+    @Test
+    public void testPutGetRemove()
+    {
+        ConcurrentLongMap<String> map = new ConcurrentLongMap<>();
+        assertNull(map.put(42L, "a"));
+        assertNull(map.put(0L, "zero"));
+        assertNull(map.put(-7L, "negative"));
+        assertEquals(3, map.size());
+        assertEquals("a", map.get(42L));
+        assertEquals("zero", map.get(0L));
+        assertEquals("negative", map.get(-7L));
+        assertNull(map.get(43L));
+
+        assertEquals("a", map.put(42L, "b"));
+        assertEquals("b", map.get(42L));
+        assertEquals(3, map.size());
+
+        assertEquals("b", map.putIfAbsent(42L, "c"));
+        assertEquals("b", map.get(42L));
+
+        assertFalse(map.remove(42L, "a"));
+        assertTrue(map.remove(42L, "b"));
+        assertNull(map.get(42L));
+        assertEquals("zero", map.remove(0L));
+        assertNull(map.get(0L));
+        assertNull(map.remove(12345L));
+        assertEquals(1, map.size());
+
+        // the boxed Map methods go through the same table
+        assertEquals("negative", map.get(Long.valueOf(-7L)));
+        assertNull(map.get("not a long"));
+        assertTrue(map.containsKey(Long.valueOf(-7L)));
+    }
+
+    @Test
+    public void testTombstoneReuse()
+    {
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<>();
+        assertNull(map.put(1L, Long.valueOf(1L)));
+        assertEquals(Long.valueOf(1L), map.remove(1L));
+        assertEquals(0, map.size());
+        // the removed slot keeps its key and is taken back by the same key
+        assertNull(map.put(1L, Long.valueOf(2L)));
+        assertEquals(Long.valueOf(2L), map.get(1L));
+        assertEquals(1, map.size());
+
+        // churn many keys: tombstones must be dropped by the resizes
+        for (long key = 2; key < 100000; key++)
+        {
+            map.put(key, Long.valueOf(key));
+            assertEquals(Long.valueOf(key), map.remove(key));
+        }
+        assertEquals(1, map.size());
+        assertEquals(Long.valueOf(2L), map.get(1L));
+        long [] keys = map.keys();
+        assertEquals(1, keys.length);
+        assertEquals(1L, keys[0]);
+    }
+
+    @Test
+    public void testResizeUnderContention() throws Exception
+    {
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try
+        {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++)
+            {
+                final long base = (long) t * KEYS_PER_THREAD + 1;
+                tasks.add(pool.submit(() -> {
+                    start.await();
+                    for (long key = base; key < base + KEYS_PER_THREAD; key++)
+                    {
+                        assertNull(map.put(key, Long.valueOf(key)));
+                        // a key must stay visible while other threads grow the table
+                        assertEquals(Long.valueOf(key), map.get(key));
+                        assertEquals(Long.valueOf(base), map.get(base));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> task : tasks)
+            {
+                task.get(1, TimeUnit.MINUTES);
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        assertEquals(THREADS * KEYS_PER_THREAD, map.size());
+        for (long key = 1; key <= (long) THREADS * KEYS_PER_THREAD; key++)
+        {
+            assertEquals(Long.valueOf(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void testIterationDuringConcurrentWrites() throws Exception
+    {
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<>();
+        int stable = 1000;
+        for (long key = 1; key <= stable; key++)
+        {
+            map.put(key, Long.valueOf(key));
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<?> writer = pool.submit(() -> {
+                // fresh keys with a bounded live window: the tombstones keep resizing the table
+                for (long key = -1; running.get(); key--)
+                {
+                    map.put(key, Long.valueOf(key));
+                    if (key <= -WINDOW)
+                    {
+                        map.remove(key + WINDOW);
+                    }
+                }
+            });
+            for (int round = 0; round < 200; round++)
+            {
+                Set<Long> seen = new HashSet<>();
+                map.forEachEntry((k, v) -> {
+                    assertNotNull(v);
+                    assertEquals(k, v.longValue());
+                    if (k > 0)
+                    {
+                        seen.add(k);
+                    }
+                });
+                assertEquals(stable, seen.size());
+                seen.clear();
+                for (Map.Entry<Long, Long> entry : map.entrySet())
+                {
+                    assertEquals(entry.getKey(), entry.getValue());
+                    if (entry.getKey() > 0)
+                    {
+                        seen.add(entry.getKey());
+                    }
+                }
+                assertEquals(stable, seen.size());
+            }
+            running.set(false);
+            writer.get(1, TimeUnit.MINUTES);
+        }
+        finally
+        {
+            running.set(false);
+            pool.shutdownNow();
+        }
+    }
+
+}